@@ -0,0 +1,186 @@
+package org.thomaspengo.tslim;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Finds which slices of a radial stack are read by the reconstruction of the output, or of a
+ * region of it, so that only those need to be loaded.
+ *
+ * Theta only depends on the (x,y) column of the output, so the columns are enough to know which
+ * pairs of slices the interpolation reads. A partial arc, or a region of interest, only needs
+ * part of the stack. Slices acquired beyond 360 degrees image the same half-planes as the
+ * ones 360 degrees before them; they are only read at the seam, and can instead be averaged
+ * with them as the stack is loaded.
+ *
+ * @author Thomas Pengo
+ */
+public class AngularCoverage {
+
+	private final int thetaAxis;
+	private final int nTheta;
+	private final int period;
+	private final BitSet needed = new BitSet();
+
+	/**
+	 * Coverage of the whole output.
+	 *
+	 * @param reconstructor the reconstructor holding the parameters (bias, spacing, orders)
+	 * @param sourceDimensions the dimensions of the complete radial stack, in the source order
+	 */
+	public AngularCoverage(ReconstructFromRadialSlices reconstructor, long[] sourceDimensions) {
+		this(reconstructor, sourceDimensions, null);
+	}
+
+	/**
+	 * Coverage of a region of the output.
+	 *
+	 * @param reconstructor the reconstructor holding the parameters (bias, spacing, orders)
+	 * @param sourceDimensions the dimensions of the complete radial stack, in the source order
+	 * @param roi the region of the plane of rotation, X_Y, or null for the whole output
+	 */
+	public AngularCoverage(ReconstructFromRadialSlices reconstructor, long[] sourceDimensions, Interval roi) {
+		this.thetaAxis = reconstructor.h_r_theta_i[2];
+		this.nTheta = (int) sourceDimensions[thetaAxis];
+
+		// Number of slices in a full turn, if the spacing divides 360 degrees
+		double turn = 360/reconstructor.getRadialStackAngleSpacing();
+		this.period = Math.abs(turn-Math.round(turn))<1e-6 ? (int) Math.round(turn) : 0;
+
+		long[] outputDimensions = reconstructor.getOutputDimensions(sourceDimensions);
+		long X = outputDimensions[reconstructor.x_y_z_i[0]];
+		long Y = outputDimensions[reconstructor.x_y_z_i[1]];
+		double[] origin_XYZ = {X/2, Y/2, 0};
+
+		long[] min = roi==null ? new long[] {0,0} : new long[] {Math.max(0, roi.min(0)), Math.max(0, roi.min(1))};
+		long[] max = roi==null ? new long[] {X-1,Y-1} : new long[] {Math.min(X-1, roi.max(0)), Math.min(Y-1, roi.max(1))};
+
+		double[] bias = reconstructor.getBias();
+		double spacing = reconstructor.getRadialStackAngleSpacing();
+
+		// The last slice of a full turn is interpolated with the first one
+		boolean seam = ReconstructFromRadialSlices.isFullTurn(nTheta, spacing);
+		double[] x_y_z = {0,0,0};
+		double[] h_r_theta_fast = {0,0,0};
+		for (long y=min[1]; y<=max[1]; y++)
+			for (long x=min[0]; x<=max[0]; x++) {
+				x_y_z[0] = x;
+				x_y_z[1] = y;
+				double theta = reconstructor.isFastMath() ?
+						ReconstructFromRadialSlices.fromCubicCoordinatesFast(x_y_z, bias, origin_XYZ, spacing, h_r_theta_fast)[2] :
+						ReconstructFromRadialSlices.fromCubicCoordinates(x_y_z, bias, origin_XYZ, spacing)[2];
+
+				// The two slices of the linear interpolation
+				int t = (int) Math.floor(theta);
+				if (t<nTheta)
+					needed.set(t);
+				if (t+1<nTheta && theta>t)
+					needed.set(t+1);
+				else if (t+1==nTheta && theta>t && seam)
+					needed.set(0);
+			}
+	}
+
+	/**
+	 * @return true if the slice is read by the reconstruction
+	 */
+	public boolean isNeeded(int slice) {
+		return needed.get(slice);
+	}
+
+	/**
+	 * @return the number of slices read by the reconstruction
+	 */
+	public int getSliceCount() {
+		return needed.cardinality();
+	}
+
+	/**
+	 * @return the first slice read by the reconstruction, or -1 if there is none
+	 */
+	public int getFirstSlice() {
+		return needed.nextSetBit(0);
+	}
+
+	/**
+	 * @return the last slice read by the reconstruction, or -1 if there is none
+	 */
+	public int getLastSlice() {
+		return needed.length()-1;
+	}
+
+	/**
+	 * @return the number of slices acquired beyond 360 degrees, 0 if the spacing does not divide 360 degrees
+	 */
+	public int getRedundantSliceCount() {
+		return period==0 ? 0 : Math.max(0, nTheta-period);
+	}
+
+	/**
+	 * Load the slices read by the reconstruction, and give their position to the reconstructor
+	 * with {@link ReconstructFromRadialSlices#setThetaOffset(long)}.
+	 *
+	 * The loaded stack spans the slices from the first to the last one read, so that it is indexed
+	 * like the complete stack, but only the slices read are copied and the others are left at 0.
+	 * A region across the seam of a full turn reads slices at both ends of the stack, so the
+	 * loaded stack is then as large as the complete one, although most of it is not read.
+	 *
+	 * @param stack the complete radial stack, in the source order
+	 * @param factory the factory of the loaded stack
+	 * @param averageRedundant average each slice with the slices acquired a multiple of 360 degrees after it
+	 *
+	 * @return the loaded slices
+	 */
+	public <T extends RealType<T>> Img<FloatType> load(RandomAccessibleInterval<T> stack, ImgFactory<FloatType> factory, boolean averageRedundant) {
+		int first = getFirstSlice(), last = getLastSlice();
+		if (first<0)
+			throw new RuntimeException("No slice of the stack is read by the reconstruction");
+
+		long[] dimensions = new long[stack.numDimensions()];
+		stack.dimensions(dimensions);
+		dimensions[thetaAxis] = last-first+1;
+		Img<FloatType> loaded = factory.create(dimensions, new FloatType());
+
+		boolean average = averageRedundant && period>0;
+		for (int t=needed.nextSetBit(first); t>=0; t=needed.nextSetBit(t+1)) {
+			Cursor<FloatType> to = Views.flatIterable(Views.hyperSlice(loaded, thetaAxis, t-first)).localizingCursor();
+			RandomAccessibleInterval<T> from = Views.hyperSlice(stack, thetaAxis, stack.min(thetaAxis)+t);
+
+			if (!average) {
+				Cursor<T> c = Views.flatIterable(from).cursor();
+				while (to.hasNext())
+					to.next().setReal(c.next().getRealDouble());
+				continue;
+			}
+
+			// The slice and its repeats at the same angle, read together
+			List<RandomAccess<T>> repeats = new ArrayList<RandomAccess<T>>();
+			for (int s=t % period; s<nTheta; s+=period)
+				repeats.add(Views.hyperSlice(stack, thetaAxis, stack.min(thetaAxis)+s).randomAccess());
+
+			while (to.hasNext()) {
+				to.fwd();
+				double sum = 0;
+				for (RandomAccess<T> r : repeats) {
+					for (int d=0; d<to.numDimensions(); d++)
+						r.setPosition(to.getLongPosition(d)+from.min(d), d);
+					sum += r.get().getRealDouble();
+				}
+				to.get().setReal(sum/repeats.size());
+			}
+		}
+
+		return loaded;
+	}
+}
@@ -0,0 +1,168 @@
+package org.thomaspengo.tslim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Minimum and maximum of the radial stack over coarse blocks of (h,r,theta), and over blocks
+ * twice as large at each level, so that the range of values read from any box of the stack can
+ * be bounded by looking at a few blocks.
+ *
+ * Values outside of the stack are 0, as when the reconstruction samples it.
+ *
+ * @author Thomas Pengo
+ */
+class BackgroundPyramid {
+
+	/** Blocks of the coarsest level looked at by a query, along each dimension */
+	private static final int BLOCKS_PER_QUERY = 4;
+
+	private final long[] min = new long[3];
+	private final long[] max = new long[3];
+	private final int blockSize;
+
+	// Per level: the number of blocks along H, R and Theta, and their extrema (h fastest)
+	private final List<int[]> blocks = new ArrayList<int[]>();
+	private final List<float[]> minima = new ArrayList<float[]>();
+	private final List<float[]> maxima = new ArrayList<float[]>();
+
+	/**
+	 * Compute the pyramid in one pass over the stack.
+	 *
+	 * @param sampled the stack as it is sampled by the reconstruction
+	 * @param stack the interval of the stack, in the source order
+	 * @param h_r_theta_i the dimensions of the source along h, r and theta
+	 * @param blockSize the size of the blocks of the finest level
+	 */
+	BackgroundPyramid(RandomAccessible<FloatType> sampled, Interval stack, int[] h_r_theta_i, int blockSize) {
+		this.blockSize = blockSize;
+		for (int k=0; k<3; k++) {
+			min[k] = stack.min(h_r_theta_i[k]);
+			max[k] = stack.max(h_r_theta_i[k]);
+		}
+
+		int[] nb = new int[3];
+		for (int k=0; k<3; k++)
+			nb[k] = (int) ((max[k]-min[k])/blockSize+1);
+
+		float[] lo = new float[nb[0]*nb[1]*nb[2]];
+		float[] hi = new float[lo.length];
+		Arrays.fill(lo, Float.POSITIVE_INFINITY);
+		Arrays.fill(hi, Float.NEGATIVE_INFINITY);
+
+		Cursor<FloatType> c = Views.interval(sampled, stack).localizingCursor();
+		while (c.hasNext()) {
+			float v = c.next().get();
+			int i = (int) ((c.getLongPosition(h_r_theta_i[0])-min[0])/blockSize
+					+ nb[0]*((c.getLongPosition(h_r_theta_i[1])-min[1])/blockSize
+					+ nb[1]*((c.getLongPosition(h_r_theta_i[2])-min[2])/blockSize)));
+			if (v<lo[i])
+				lo[i] = v;
+			if (v>hi[i])
+				hi[i] = v;
+		}
+
+		blocks.add(nb);
+		minima.add(lo);
+		maxima.add(hi);
+
+		// Merge 2x2x2 blocks until a single one is left
+		while (nb[0]>1 || nb[1]>1 || nb[2]>1) {
+			int[] nb2 = {(nb[0]+1)/2, (nb[1]+1)/2, (nb[2]+1)/2};
+			float[] lo2 = new float[nb2[0]*nb2[1]*nb2[2]];
+			float[] hi2 = new float[lo2.length];
+			Arrays.fill(lo2, Float.POSITIVE_INFINITY);
+			Arrays.fill(hi2, Float.NEGATIVE_INFINITY);
+
+			for (int t=0; t<nb[2]; t++)
+				for (int r=0; r<nb[1]; r++)
+					for (int h=0; h<nb[0]; h++) {
+						int i = h+nb[0]*(r+nb[1]*t);
+						int i2 = h/2+nb2[0]*(r/2+nb2[1]*(t/2));
+						lo2[i2] = Math.min(lo2[i2], lo[i]);
+						hi2[i2] = Math.max(hi2[i2], hi[i]);
+					}
+
+			nb = nb2;
+			lo = lo2;
+			hi = hi2;
+			blocks.add(nb);
+			minima.add(lo);
+			maxima.add(hi);
+		}
+	}
+
+	/**
+	 * @param dimensions the dimensions of the stack, in the source order
+	 * @param h_r_theta_i the dimensions of the source along h, r and theta
+	 * @param blockSize the size of the blocks of the finest level
+	 *
+	 * @return the memory used by the pyramid of the stack, in bytes
+	 */
+	static long getBytes(long[] dimensions, int[] h_r_theta_i, int blockSize) {
+		long[] nb = new long[3];
+		for (int k=0; k<3; k++)
+			nb[k] = (dimensions[h_r_theta_i[k]]-1)/blockSize+1;
+
+		// Minimum and maximum of every block of every level
+		long bytes = 8*nb[0]*nb[1]*nb[2];
+		while (nb[0]>1 || nb[1]>1 || nb[2]>1) {
+			for (int k=0; k<3; k++)
+				nb[k] = (nb[k]+1)/2;
+			bytes += 8*nb[0]*nb[1]*nb[2];
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * @param from the first (h,r,theta) position of the box
+	 * @param to the last (h,r,theta) position of the box
+	 *
+	 * @return the minimum and maximum value read from the box, which may extend outside of the stack
+	 */
+	float[] getExtrema(long[] from, long[] to) {
+		float lo = Float.POSITIVE_INFINITY, hi = Float.NEGATIVE_INFINITY;
+
+		// Outside of the stack is 0
+		long[] a = new long[3], b = new long[3];
+		for (int k=0; k<3; k++) {
+			if (from[k]<min[k] || to[k]>max[k]) {
+				lo = Math.min(lo, 0);
+				hi = Math.max(hi, 0);
+			}
+			a[k] = Math.max(from[k], min[k])-min[k];
+			b[k] = Math.min(to[k], max[k])-min[k];
+			if (a[k]>b[k])
+				return new float[] {lo, hi};
+		}
+
+		// The finest level that needs few blocks
+		int level = 0;
+		long size = blockSize;
+		while (level<blocks.size()-1 &&
+				(b[0]/size-a[0]/size>=BLOCKS_PER_QUERY || b[1]/size-a[1]/size>=BLOCKS_PER_QUERY || b[2]/size-a[2]/size>=BLOCKS_PER_QUERY)) {
+			level++;
+			size *= 2;
+		}
+
+		int[] nb = blocks.get(level);
+		float[] minimum = minima.get(level), maximum = maxima.get(level);
+		for (long t=a[2]/size; t<=b[2]/size; t++)
+			for (long r=a[1]/size; r<=b[1]/size; r++)
+				for (long h=a[0]/size; h<=b[0]/size; h++) {
+					int i = (int) (h+nb[0]*(r+nb[1]*t));
+					lo = Math.min(lo, minimum[i]);
+					hi = Math.max(hi, maximum[i]);
+				}
+
+		return new float[] {lo, hi};
+	}
+}
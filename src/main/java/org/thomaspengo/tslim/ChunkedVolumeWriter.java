@@ -0,0 +1,420 @@
+package org.thomaspengo.tslim;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.Views;
+
+/**
+ * Writes a 3D float volume as a chunked, gzip compressed N5 container, together with a
+ * multi-resolution pyramid (datasets s0, s1, ... each downsampled 2x from the previous one).
+ *
+ * The volume is processed in super-blocks of blockSize*2^(levels-1) voxels per side, which
+ * contain a whole number of blocks at every level. Each super-block is copied once into a
+ * buffer, its blocks are compressed and written, and the buffer is then downsampled in place
+ * for the next level. All the levels are therefore written in a single pass, and super-blocks
+ * are independent so they can be written in parallel.
+ *
+ * Used as a {@link SlabListener}, the reconstruction aligns its slabs to blocks and each worker
+ * writes the full resolution blocks of its slab as soon as it is done. The part of each
+ * super-block in the slab is then downsampled once, while it is still in cache, into a
+ * pending half resolution copy of the super-block. The worker that completes the last block of
+ * a super-block writes its lower levels from that copy, without reading the output again.
+ *
+ * @author Thomas Pengo
+ */
+public class ChunkedVolumeWriter implements SlabListener {
+
+	private static final int BLOCK_SIZE_DEFAULT = 64;
+	private static final int LEVELS_DEFAULT = 3;
+
+	private final File root;
+	private final long[] dimensions;
+	private final int blockSize;
+	private final int levels;
+	private final int superBlockSize;
+
+	/**
+	 * Half resolution copy of a super-block whose full resolution blocks are still being written
+	 */
+	private static class PendingSuperBlock {
+		final int[] size;
+		final float[] data;
+		final AtomicInteger writtenBlocks = new AtomicInteger();
+
+		PendingSuperBlock(int[] size) {
+			this.size = size;
+			this.data = new float[size[0]*size[1]*size[2]];
+		}
+	}
+
+	private final ConcurrentHashMap<Long, PendingSuperBlock> pending = new ConcurrentHashMap<Long, PendingSuperBlock>();
+
+	/**
+	 * Create the container with 64^3 blocks and 3 levels.
+	 *
+	 * @param root the directory of the N5 container
+	 * @param dimensions the dimensions of the full resolution volume
+	 */
+	public ChunkedVolumeWriter(File root, long[] dimensions) {
+		this(root, dimensions, BLOCK_SIZE_DEFAULT, LEVELS_DEFAULT);
+	}
+
+	/**
+	 * Create the container and the attributes of its datasets.
+	 *
+	 * @param root the directory of the N5 container
+	 * @param dimensions the dimensions of the full resolution volume
+	 * @param blockSize the size of the (cubic) blocks
+	 * @param levels the number of resolution levels, including the full resolution
+	 */
+	public ChunkedVolumeWriter(File root, long[] dimensions, int blockSize, int levels) {
+		if (dimensions.length!=3)
+			throw new RuntimeException("Only 3D volumes can be written");
+		if (levels<1)
+			throw new RuntimeException("At least one resolution level is needed");
+		if (levels>1 && blockSize%2!=0)
+			throw new RuntimeException("The blocks of a multi-resolution pyramid must have an even size");
+
+		this.root = root;
+		this.dimensions = dimensions.clone();
+		this.blockSize = blockSize;
+		this.levels = levels;
+		this.superBlockSize = blockSize << (levels-1);
+
+		try {
+			writeAttributes();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not create "+root, e);
+		}
+	}
+
+	/**
+	 * @return the size of the blocks; slabs given to {@link #slabCompleted(IntervalView)} must be aligned to it
+	 */
+	@Override
+	public long getSlabAlignment() {
+		return blockSize;
+	}
+
+	/**
+	 * @return the size of the buffers used by each writing thread: a super-block, and its pending half resolution copy
+	 */
+	@Override
+	public long getBytesPerWorker() {
+		return 4L*superBlockSize*superBlockSize*superBlockSize*9/8;
+	}
+
+	/**
+	 * Forget the super-blocks left incomplete by a previous (aborted) reconstruction
+	 */
+	@Override
+	public void outputCreated(Img<FloatType> output) {
+		pending.clear();
+	}
+
+	/**
+	 * @return the dimensions of a resolution level
+	 */
+	public long[] getDimensions(int level) {
+		return Arrays.stream(dimensions).map(d -> ((d-1) >> level)+1).toArray();
+	}
+
+	/**
+	 * Write the full resolution blocks of the slab, and the lower levels of the super-blocks it completes.
+	 * The slab must be a view of the whole volume.
+	 */
+	@Override
+	public void slabCompleted(IntervalView<FloatType> slab) {
+		for (int d=0; d<3; d++)
+			if (slab.min(d)%blockSize!=0 || ((slab.max(d)+1)%blockSize!=0 && slab.max(d)!=dimensions[d]-1))
+				throw new RuntimeException("The slab is not aligned to the blocks of size "+blockSize);
+
+		long[] n = new long[3];
+		for (int d=0; d<3; d++)
+			n[d] = (dimensions[d]+superBlockSize-1)/superBlockSize;
+
+		for (long sz=slab.min(2)/superBlockSize; sz<=slab.max(2)/superBlockSize; sz++)
+			for (long sy=slab.min(1)/superBlockSize; sy<=slab.max(1)/superBlockSize; sy++)
+				for (long sx=slab.min(0)/superBlockSize; sx<=slab.max(0)/superBlockSize; sx++) {
+					long[] min = {sx*superBlockSize, sy*superBlockSize, sz*superBlockSize};
+
+					// Part of the super-block in the slab, and the number of blocks in it and in the whole super-block
+					long[] partMin = new long[3], partMax = new long[3];
+					int[] half = new int[3];
+					int blocks = 1, total = 1;
+					for (int d=0; d<3; d++) {
+						long max = Math.min(min[d]+superBlockSize, dimensions[d])-1;
+						partMin[d] = Math.max(min[d], slab.min(d));
+						partMax[d] = Math.min(max, slab.max(d));
+						half[d] = (int) (max-min[d]+2)/2;
+						blocks *= (partMax[d]-partMin[d])/blockSize+1;
+						total *= (max-min[d])/blockSize+1;
+					}
+
+					try {
+						float[] buffer = new float[(int) Intervals.numElements(new FinalInterval(partMin, partMax))];
+						int[] size = copy(slab, partMin, partMax, buffer);
+						writeBlocks(0, buffer, size, partMin);
+						if (levels==1)
+							continue;
+
+						// The part starts at an even offset, so it downsamples to the same voxels as the whole super-block
+						long key = sx+n[0]*(sy+n[1]*sz);
+						PendingSuperBlock superBlock = pending.computeIfAbsent(key, k -> new PendingSuperBlock(half));
+						size = downsample(buffer, size);
+						for (int z=0; z<size[2]; z++)
+							for (int y=0; y<size[1]; y++)
+								System.arraycopy(buffer, size[0]*(y+size[1]*z), superBlock.data,
+										(int) ((partMin[0]-min[0])/2 + half[0]*((partMin[1]-min[1])/2+y + half[1]*((partMin[2]-min[2])/2+z))),
+										size[0]);
+
+						if (superBlock.writtenBlocks.addAndGet(blocks)==total) {
+							pending.remove(key);
+							writeLevels(superBlock.data, superBlock.size, new long[] {min[0]/2, min[1]/2, min[2]/2}, 1);
+						}
+					} catch (IOException e) {
+						throw new UncheckedIOException("Could not write the super-block at "+Arrays.toString(min), e);
+					}
+				}
+	}
+
+	/**
+	 * Restored slabs are written like the computed ones
+	 */
+	@Override
+	public void slabRestored(IntervalView<FloatType> slab) {
+		slabCompleted(slab);
+	}
+
+	/**
+	 * Write a complete volume, using several threads.
+	 *
+	 * @param volume the volume, with the dimensions given to the constructor
+	 * @param n_workers the number of threads
+	 */
+	public void write(RandomAccessibleInterval<FloatType> volume, int n_workers) {
+		final IntervalView<FloatType> all = Views.interval(volume, volume);
+
+		List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+		for (long[] min : superBlocks(all))
+			tasks.add(() -> {
+				writeSuperBlock(all, min);
+				return true;
+			});
+
+		ExecutorService executor = Executors.newFixedThreadPool(n_workers);
+		try {
+			for (Future<Boolean> f : executor.invokeAll(tasks))
+				f.get();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Could not write "+root, e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * @return the min corner of every super-block in the interval
+	 */
+	private List<long[]> superBlocks(IntervalView<FloatType> interval) {
+		for (int d=0; d<3; d++)
+			if (interval.min(d)%superBlockSize!=0 || ((interval.max(d)+1)%superBlockSize!=0 && interval.max(d)!=dimensions[d]-1))
+				throw new RuntimeException("The slab is not aligned to the super-blocks of size "+superBlockSize);
+
+		List<long[]> mins = new ArrayList<long[]>();
+		for (long z=interval.min(2); z<=interval.max(2); z+=superBlockSize)
+			for (long y=interval.min(1); y<=interval.max(1); y+=superBlockSize)
+				for (long x=interval.min(0); x<=interval.max(0); x+=superBlockSize)
+					mins.add(new long[] {x,y,z});
+
+		return mins;
+	}
+
+	/**
+	 * Write every level of a super-block
+	 */
+	private void writeSuperBlock(RandomAccessible<FloatType> source, long[] min) throws IOException {
+		long[] max = new long[3];
+		for (int d=0; d<3; d++)
+			max[d] = Math.min(min[d]+superBlockSize, dimensions[d])-1;
+
+		float[] buffer = new float[(int) Intervals.numElements(new FinalInterval(min, max))];
+		int[] size = copy(source, min, max, buffer);
+		writeLevels(buffer, size, min, 0);
+	}
+
+	/**
+	 * Write the levels of a super-block from the first one on, downsampling the buffer in place
+	 *
+	 * @param buffer the super-block at the first level
+	 * @param origin the position of the super-block at the first level
+	 */
+	private void writeLevels(float[] buffer, int[] size, long[] origin, int firstLevel) throws IOException {
+		origin = origin.clone();
+		for (int level=firstLevel; level<levels; level++) {
+			writeBlocks(level, buffer, size, origin);
+
+			if (level<levels-1) {
+				size = downsample(buffer, size);
+				for (int d=0; d<3; d++)
+					origin[d] /= 2;
+			}
+		}
+	}
+
+	/**
+	 * Copy an interval of the volume into the buffer, x fastest
+	 *
+	 * @return the size of the interval
+	 */
+	private static int[] copy(RandomAccessible<FloatType> source, long[] min, long[] max, float[] buffer) {
+		int[] size = new int[3];
+		for (int d=0; d<3; d++)
+			size[d] = (int) (max[d]-min[d]+1);
+
+		int i = 0;
+		Cursor<FloatType> cursor = Views.flatIterable(Views.interval(source, min, max)).cursor();
+		while (cursor.hasNext())
+			buffer[i++] = cursor.next().get();
+
+		return size;
+	}
+
+	/**
+	 * Cut the buffer in blocks and write them
+	 */
+	private void writeBlocks(int level, float[] buffer, int[] size, long[] origin) throws IOException {
+		for (int bz=0; bz<size[2]; bz+=blockSize)
+			for (int by=0; by<size[1]; by+=blockSize)
+				for (int bx=0; bx<size[0]; bx+=blockSize) {
+					int[] blockDims = {
+							Math.min(blockSize, size[0]-bx),
+							Math.min(blockSize, size[1]-by),
+							Math.min(blockSize, size[2]-bz)
+						};
+
+					ByteBuffer data = ByteBuffer.allocate(4*blockDims[0]*blockDims[1]*blockDims[2]);
+					for (int z=bz; z<bz+blockDims[2]; z++)
+						for (int y=by; y<by+blockDims[1]; y++) {
+							int offset = bx+size[0]*(y+size[1]*z);
+							for (int x=0; x<blockDims[0]; x++)
+								data.putFloat(buffer[offset+x]);
+						}
+
+					File file = new File(root, "s"+level
+							+File.separator+(origin[0]+bx)/blockSize
+							+File.separator+(origin[1]+by)/blockSize
+							+File.separator+(origin[2]+bz)/blockSize);
+					writeBlock(file, blockDims, data.array());
+				}
+	}
+
+	/**
+	 * N5 block: uncompressed header (mode, number of dimensions, size of the block) followed by the compressed big endian data
+	 */
+	private static void writeBlock(File file, int[] blockDims, byte[] data) throws IOException {
+		Files.createDirectories(file.getParentFile().toPath());
+
+		try (OutputStream out = new FileOutputStream(file)) {
+			DataOutputStream header = new DataOutputStream(out);
+			header.writeShort(0);
+			header.writeShort(blockDims.length);
+			for (int d : blockDims)
+				header.writeInt(d);
+			header.flush();
+
+			GZIPOutputStream gzip = new GZIPOutputStream(out, 65536);
+			gzip.write(data);
+			gzip.finish();
+		}
+	}
+
+	/**
+	 * Downsample the buffer 2x in place, averaging the non-NaN values of each 2x2x2 neighbourhood.
+	 *
+	 * @return the new size
+	 */
+	static int[] downsample(float[] buffer, int[] size) {
+		int[] half = {(size[0]+1)/2, (size[1]+1)/2, (size[2]+1)/2};
+
+		// The destination index is never larger than any of the source indices still to be read
+		for (int z=0; z<half[2]; z++)
+			for (int y=0; y<half[1]; y++)
+				for (int x=0; x<half[0]; x++) {
+					double sum = 0;
+					int n = 0;
+					for (int zz=2*z; zz<Math.min(2*z+2, size[2]); zz++)
+						for (int yy=2*y; yy<Math.min(2*y+2, size[1]); yy++)
+							for (int xx=2*x; xx<Math.min(2*x+2, size[0]); xx++) {
+								float v = buffer[xx+size[0]*(yy+size[1]*zz)];
+								if (!Float.isNaN(v)) {
+									sum += v;
+									n++;
+								}
+							}
+
+					buffer[x+half[0]*(y+half[1]*z)] = n==0 ? Float.NaN : (float) (sum/n);
+				}
+
+		return half;
+	}
+
+	private void writeAttributes() throws IOException {
+		Files.createDirectories(root.toPath());
+
+		StringBuilder scales = new StringBuilder();
+		for (int level=0; level<levels; level++)
+			scales.append(level==0 ? "" : ",").append(Arrays.toString(factors(level)));
+
+		writeJson(new File(root, "attributes.json"), "{\"n5\":\"2.0.0\",\"scales\":["+scales+"]}");
+
+		for (int level=0; level<levels; level++)
+			writeJson(new File(root, "s"+level+File.separator+"attributes.json"),
+					"{\"dimensions\":"+Arrays.toString(getDimensions(level))
+					+",\"blockSize\":"+Arrays.toString(new int[] {blockSize, blockSize, blockSize})
+					+",\"dataType\":\"float32\""
+					+",\"compression\":{\"type\":\"gzip\",\"useZlib\":false,\"level\":-1}"
+					+",\"downsamplingFactors\":"+Arrays.toString(factors(level))+"}");
+	}
+
+	private static long[] factors(int level) {
+		return new long[] {1L<<level, 1L<<level, 1L<<level};
+	}
+
+	private static void writeJson(File file, String json) throws IOException {
+		Files.createDirectories(file.getParentFile().toPath());
+		try (Writer w = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+			w.write(json);
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package org.thomaspengo.tslim;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import org.thomaspengo.tslim.gui.ReconstructionProgress;
+
+/**
+ * Reconstructs a radial stack while it is being acquired, one angle at a time.
+ *
+ * The theta coordinate of an output voxel only depends on its (x,y) column, and the linear
+ * interpolation only reads the two slices around it. Every column is therefore bucketed once by
+ * the lower of its two slices, and a new slice only updates the columns of the two buckets that
+ * read it. The output is always available for a live preview, and is identical to the one of
+ * {@link ReconstructFromRadialSlices#createReconstruction(ReconstructionProgress)} once all the
+ * slices have arrived.
+ *
+ * @author Thomas Pengo
+ */
+public class IncrementalReconstruction implements AutoCloseable {
+
+	private final ReconstructFromRadialSlices reconstructor;
+	private final Img<FloatType> stack;
+	private final Img<FloatType> output;
+	private final RealRandomAccessible<FloatType> interpolant;
+
+	private final double[] origin_XYZ;
+	private final double[] bias;
+	private final double spacing;
+	private final boolean fastMath;
+	private final int thetaAxis;
+	private final int workers;
+	private final ExecutorService executor;
+
+	// Columns (x + y*X) whose theta lies between slice t and t+1
+	private final long[][] columnsByTheta;
+	private final BitSet received = new BitSet();
+
+	private ReconstructionProgress callback = (progress) -> {};
+
+	/**
+	 * Prepare an incremental reconstruction. The parameters of the reconstructor (bias, spacing, correction,
+	 * orders) are read now; changing them afterwards has no effect on this reconstruction.
+	 *
+	 * @param reconstructor the reconstructor holding the parameters
+	 * @param sourceDimensions the dimensions of the complete radial stack, in the source order
+	 */
+	public IncrementalReconstruction(ReconstructFromRadialSlices reconstructor, long[] sourceDimensions) {
+		this.reconstructor = reconstructor;
+		this.bias = reconstructor.getBias().clone();
+		this.spacing = reconstructor.getRadialStackAngleSpacing();
+		this.fastMath = reconstructor.isFastMath();
+		this.thetaAxis = reconstructor.h_r_theta_i[2];
+		
+		if (reconstructor.getThetaOffset()!=0)
+			throw new RuntimeException("Incremental reconstructions need the complete stack, starting at the first slice");
+
+		MemoryPlanner.MemoryPlan plan = reconstructor.planMemory(sourceDimensions);
+		this.workers = plan.getWorkers();
+		this.executor = Executors.newFixedThreadPool(workers);
+
+		// The stack is filled as the slices arrive, the input of the reconstructor is left alone
+		this.stack = new ArrayImgFactory<FloatType>().create(sourceDimensions, new FloatType());
+		this.interpolant = Views.interpolate(reconstructor.getSampledSource(stack, spacing), new NLinearInterpolatorFactory<FloatType>());
+		this.output = plan.createOutputFactory().create(reconstructor.getOutputDimensions(sourceDimensions), new FloatType());
+
+		this.origin_XYZ = new double[] {
+				output.dimension(reconstructor.x_y_z_i[0])/2,
+				output.dimension(reconstructor.x_y_z_i[1])/2,
+				0
+			};
+
+		this.columnsByTheta = bucketColumns();
+	}
+
+	public void setProgressCallback(ReconstructionProgress callback) {
+		this.callback = callback;
+	}
+
+	/**
+	 * @return the reconstruction so far. Voxels that need slices which have not arrived yet are incomplete.
+	 */
+	public Img<FloatType> getOutput() {
+		return output;
+	}
+
+	/**
+	 * @return true once every slice of the stack has been added
+	 */
+	public boolean isComplete() {
+		return received.cardinality()==stack.dimension(thetaAxis);
+	}
+
+	/**
+	 * Stop the threads updating the output, once no more slices will be added.
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Add a newly acquired slice and update the voxels that depend on it. Slices can arrive in any order.
+	 *
+	 * @param theta the index of the slice along the theta axis of the stack
+	 * @param slice the 2D slice, with the remaining two dimensions in the source order
+	 */
+	public synchronized void addSlice(int theta, RandomAccessibleInterval<FloatType> slice) {
+		if (theta<0 || theta>=stack.dimension(thetaAxis))
+			throw new RuntimeException("Slice "+theta+" is outside of the stack");
+
+		RandomAccessibleInterval<FloatType> dest = Views.hyperSlice(stack, thetaAxis, theta);
+		for (int d=0; d<dest.numDimensions(); d++)
+			if (dest.dimension(d)!=slice.dimension(d))
+				throw new RuntimeException("The slice does not have the dimensions of the stack");
+
+		Cursor<FloatType> from = Views.flatIterable(slice).cursor();
+		Cursor<FloatType> to = Views.flatIterable(dest).cursor();
+		while (from.hasNext())
+			to.next().set(from.next());
+
+		// The slice is the upper neighbour of bucket theta-1 and the lower neighbour of bucket theta
+		if (theta>0)
+			updateColumns(columnsByTheta[theta-1]);
+		else if (ReconstructFromRadialSlices.isFullTurn(stack.dimension(thetaAxis), spacing))
+			updateColumns(columnsByTheta[(int) stack.dimension(thetaAxis)-1]);
+		updateColumns(columnsByTheta[theta]);
+
+		received.set(theta);
+		callback.progressUpdate((double)received.cardinality()/stack.dimension(thetaAxis));
+	}
+
+	private long[][] bucketColumns() {
+		final long X = output.dimension(reconstructor.x_y_z_i[0]);
+		final long Y = output.dimension(reconstructor.x_y_z_i[1]);
+		final int nTheta = (int) stack.dimension(thetaAxis);
+
+		// Count the columns of each bucket, then fill them
+		int[] counts = new int[nTheta+1];
+		for (long y=0; y<Y; y++)
+			for (long x=0; x<X; x++)
+				counts[lowerSlice(x, y, nTheta)]++;
+
+		long[][] buckets = new long[nTheta+1][];
+		for (int t=0; t<=nTheta; t++)
+			buckets[t] = new long[counts[t]];
+
+		int[] fill = new int[nTheta+1];
+		for (long y=0; y<Y; y++)
+			for (long x=0; x<X; x++) {
+				int t = lowerSlice(x, y, nTheta);
+				buckets[t][fill[t]++] = x+y*X;
+			}
+
+		return buckets;
+	}
+
+	/**
+	 * @return the lower of the two slices read by the column, or nTheta past the last slice
+	 */
+	private int lowerSlice(long x, long y, int nTheta) {
+		double[] x_y_z = {x, y, 0};
+		double theta = fastMath ?
+				ReconstructFromRadialSlices.fromCubicCoordinatesFast(x_y_z, bias, origin_XYZ, spacing, new double[3])[2] :
+				ReconstructFromRadialSlices.fromCubicCoordinates(x_y_z, bias, origin_XYZ, spacing)[2];
+
+		return (int) Math.min(Math.floor(theta), nTheta);
+	}
+
+	private void updateColumns(long[] columns) {
+		final int n = workers;
+		final long X = output.dimension(reconstructor.x_y_z_i[0]);
+		final long H = output.dimension(reconstructor.x_y_z_i[2]);
+
+		List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+		for (int c=0; c<n; c++) {
+			final int chunk = c;
+			tasks.add(() -> {
+				RealRandomAccess<FloatType> input = interpolant.realRandomAccess();
+				RandomAccess<FloatType> out = output.randomAccess();
+
+				double[] x_y_z = {0,0,0};
+				double[] h_r_theta = {0,0,0};
+				double[] h_r_theta_fast = {0,0,0};
+				for (int i=chunk; i<columns.length; i+=n) {
+					x_y_z[0] = columns[i] % X;
+					x_y_z[1] = columns[i] / X;
+					out.setPosition((long) x_y_z[0], reconstructor.x_y_z_i[0]);
+					out.setPosition((long) x_y_z[1], reconstructor.x_y_z_i[1]);
+
+					for (long z=0; z<H; z++) {
+						x_y_z[2] = z;
+						final double[] h_r_theta_pre = fastMath ?
+								ReconstructFromRadialSlices.fromCubicCoordinatesFast(x_y_z, bias, origin_XYZ, spacing, h_r_theta_fast) :
+								ReconstructFromRadialSlices.fromCubicCoordinates(x_y_z, bias, origin_XYZ, spacing);
+
+						h_r_theta[reconstructor.h_r_theta_i[0]]=h_r_theta_pre[0];
+						h_r_theta[reconstructor.h_r_theta_i[1]]=h_r_theta_pre[1];
+						h_r_theta[reconstructor.h_r_theta_i[2]]=h_r_theta_pre[2];
+
+						input.setPosition(h_r_theta);
+						out.setPosition(z, reconstructor.x_y_z_i[2]);
+						out.get().set(input.get());
+					}
+				}
+				return true;
+			});
+		}
+
+		try {
+			for (Future<Boolean> f : executor.invokeAll(tasks))
+				f.get();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Update of the reconstruction failed", e.getCause());
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package org.thomaspengo.tslim;
+
+import java.util.Arrays;
+
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Estimates the peak memory of a reconstruction and checks it against a memory budget
+ * before the output is allocated.
+ *
+ * The estimate covers the float copy of the input (whether it has already been created or
+ * not, as it lives in the same heap), the output volume, any caches shared by the workers
+ * and the buffers owned by each worker. If the estimate does not fit the budget, the number
+ * of workers is reduced; if it still does not fit, planning fails with a report of where
+ * the memory would have gone.
+ *
+ * The whole output is always kept in memory. Its layout only depends on its number of voxels,
+ * as a single array cannot hold more than 2^31-1 of them.
+ *
+ * @author Thomas Pengo
+ */
+public class MemoryPlanner {
+
+	/** Bytes per voxel of a {@link FloatType} image */
+	static final long BYTES_PER_VOXEL = 4;
+
+	/** Rough cost of the interpolator, cursors and coordinate arrays of one worker */
+	static final long WORKER_OVERHEAD_BYTES = 16*1024;
+
+	/** Cell size used for outputs that are too large for a single array */
+	static final int CELL_SIZE = 64;
+
+	public enum OutputLayout {
+		/** The output is a single contiguous array */
+		ARRAY,
+
+		/** The output is split in cells, for volumes with more than 2^31-1 voxels */
+		CELLS;
+	}
+
+	/**
+	 * The result of planning a reconstruction.
+	 */
+	public static class MemoryPlan {
+		final long budget;
+		final long inputBytes;
+		final long outputBytes;
+		final long cacheBytes;
+		final long perWorkerBytes;
+		final int workers;
+		final OutputLayout layout;
+
+		MemoryPlan(long budget, long inputBytes, long outputBytes, long cacheBytes, long perWorkerBytes, int workers, OutputLayout layout) {
+			this.budget = budget;
+			this.inputBytes = inputBytes;
+			this.outputBytes = outputBytes;
+			this.cacheBytes = cacheBytes;
+			this.perWorkerBytes = perWorkerBytes;
+			this.workers = workers;
+			this.layout = layout;
+		}
+
+		/**
+		 * @return the estimated peak memory in bytes
+		 */
+		public long getPeakBytes() {
+			return inputBytes + outputBytes + cacheBytes + workers*perWorkerBytes;
+		}
+
+		public boolean fits() {
+			return workers > 0 && getPeakBytes() <= budget;
+		}
+
+		public int getWorkers() {
+			return workers;
+		}
+
+		public OutputLayout getOutputLayout() {
+			return layout;
+		}
+
+		public long getBudget() {
+			return budget;
+		}
+
+		/**
+		 * @return a factory for the output image matching the layout
+		 */
+		public ImgFactory<FloatType> createOutputFactory() {
+			if (layout==OutputLayout.CELLS)
+				return new CellImgFactory<FloatType>(CELL_SIZE);
+
+			return new ArrayImgFactory<FloatType>();
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("Reconstruction memory plan (budget %s)%n", toMB(budget)));
+			sb.append(String.format("  input copy : %s%n", toMB(inputBytes)));
+			sb.append(String.format("  output     : %s%n", toMB(outputBytes)));
+			sb.append(String.format("  caches     : %s%n", toMB(cacheBytes)));
+			sb.append(String.format("  workers    : %d x %s%n", workers, toMB(perWorkerBytes)));
+			sb.append(String.format("  peak       : %s%n", toMB(getPeakBytes())));
+			sb.append(String.format("  layout     : %s", layout));
+
+			return sb.toString();
+		}
+
+		private static String toMB(long bytes) {
+			return String.format("%.1f MB", bytes/1024.0/1024.0);
+		}
+	}
+
+	private long budget = Runtime.getRuntime().maxMemory();
+
+	/**
+	 * Set the memory budget in bytes. Default is the maximum heap size as reported by
+	 * Runtime.getRuntime().maxMemory()
+	 *
+	 * @param bytes
+	 */
+	public void setBudget(long bytes) {
+		this.budget = bytes;
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Plan a reconstruction, reducing the number of workers until the estimate fits the budget.
+	 *
+	 * @param inputDimensions the dimensions of the radial stack
+	 * @param outputDimensions the dimensions of the reconstruction
+	 * @param cacheBytes memory shared by all workers (plans, lookup tables)
+	 * @param perWorkerBytes memory owned by each worker on top of the fixed overhead
+	 * @param maxWorkers the number of workers requested
+	 *
+	 * @return the plan, which may or may not fit (see {@link MemoryPlan#fits()})
+	 */
+	public MemoryPlan plan(long[] inputDimensions, long[] outputDimensions, long cacheBytes, long perWorkerBytes, int maxWorkers) {
+		long inputBytes = voxels(inputDimensions)*BYTES_PER_VOXEL;
+		long outputVoxels = voxels(outputDimensions);
+		long outputBytes = outputVoxels*BYTES_PER_VOXEL;
+		long workerBytes = perWorkerBytes + WORKER_OVERHEAD_BYTES;
+
+		OutputLayout layout = outputVoxels < Integer.MAX_VALUE ? OutputLayout.ARRAY : OutputLayout.CELLS;
+
+		// The output cannot be split across more workers than it has planes along its largest dimension
+		long maxDim = Arrays.stream(outputDimensions).max().orElse(1);
+		int workers = (int) Math.max(1, Math.min(maxWorkers, maxDim));
+
+		MemoryPlan plan = new MemoryPlan(budget, inputBytes, outputBytes, cacheBytes, workerBytes, workers, layout);
+		while (!plan.fits() && workers>1) {
+			workers--;
+			plan = new MemoryPlan(budget, inputBytes, outputBytes, cacheBytes, workerBytes, workers, layout);
+		}
+
+		return plan;
+	}
+
+	/**
+	 * Same as {@link #plan(long[], long[], long, long, int)}, but fails fast if nothing fits.
+	 *
+	 * @throws RuntimeException with the memory report if the reconstruction cannot fit the budget
+	 */
+	public MemoryPlan planOrFail(long[] inputDimensions, long[] outputDimensions, long cacheBytes, long perWorkerBytes, int maxWorkers) {
+		MemoryPlan plan = plan(inputDimensions, outputDimensions, cacheBytes, perWorkerBytes, maxWorkers);
+
+		if (!plan.fits())
+			throw new RuntimeException("Not enough memory for the reconstruction, even with a single worker.\n"+plan);
+
+		return plan;
+	}
+
+	static long voxels(long[] dimensions) {
+		long n = 1;
+		for (long d : dimensions)
+			n *= d;
+
+		return n;
+	}
+}
@@ -0,0 +1,188 @@
+package org.thomaspengo.tslim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import org.thomaspengo.tslim.gui.ReconstructionProgress;
+
+/**
+ * Reconstructs a few axial planes of the input under many (bias, spacing) candidates at once,
+ * e.g. to calibrate them.
+ *
+ * The planes of rotation are cut in tiles of columns. For each column, the candidates are
+ * evaluated one after the other, so the part of the input they read (nearby r and theta, same h)
+ * is only fetched into the cache once. Tasks are made of a tile and a group of candidates,
+ * and run in parallel.
+ *
+ * The result is a single X_Y stack with one plane per (plane, candidate) pair, the candidates
+ * of the same plane next to each other.
+ *
+ * @author Thomas Pengo
+ */
+public class ParameterSweep {
+
+	private static final int TILE_SIZE = 32;
+	private static final int CANDIDATES_PER_TASK = 8;
+
+	private final ReconstructFromRadialSlices reconstructor;
+	private final List<double[]> biases = new ArrayList<double[]>();
+	private final List<Double> spacings = new ArrayList<Double>();
+
+	/**
+	 * @param reconstructor the reconstructor holding the input and the other parameters (orders, correction, fast math, workers)
+	 */
+	public ParameterSweep(ReconstructFromRadialSlices reconstructor) {
+		this.reconstructor = reconstructor;
+	}
+
+	/**
+	 * Add a candidate parameter set
+	 *
+	 * @param bias the offset between the imaging plane and the rotation axis
+	 * @param spacing the angle between two slices, in degrees
+	 */
+	public void addCandidate(double[] bias, double spacing) {
+		biases.add(bias.clone());
+		spacings.add(spacing);
+	}
+
+	public int getCandidateCount() {
+		return biases.size();
+	}
+
+	/**
+	 * @return a label for a plane of the result of {@link #run(long[], ReconstructionProgress)}
+	 */
+	public String getLabel(long[] planes, int slice) {
+		int c = slice % biases.size();
+		double[] b = biases.get(c);
+
+		return "z="+planes[slice/biases.size()]+" bias="+b[0]+","+b[1]+" spacing="+spacings.get(c);
+	}
+
+	/**
+	 * Reconstruct the planes under every candidate.
+	 *
+	 * @param planes the axial (Z) positions of the planes
+	 * @param callback progress updates
+	 *
+	 * @return an X_Y stack with the plane p of candidate c at p*(number of candidates)+c
+	 */
+	public Img<FloatType> run(long[] planes, ReconstructionProgress callback) {
+		if (biases.isEmpty())
+			throw new RuntimeException("No candidate to reconstruct");
+
+		final Img<FloatType> source = reconstructor.getInputStack();
+		long[] sourceDimensions = new long[source.numDimensions()];
+		source.dimensions(sourceDimensions);
+
+		long[] outputDimensions = reconstructor.getOutputDimensions(sourceDimensions);
+		final int X = (int) outputDimensions[reconstructor.x_y_z_i[0]];
+		final int Y = (int) outputDimensions[reconstructor.x_y_z_i[1]];
+		for (long z : planes)
+			if (z<0 || z>=outputDimensions[reconstructor.x_y_z_i[2]])
+				throw new RuntimeException("Plane "+z+" is outside of the output");
+
+		final int n = biases.size();
+		final Img<FloatType> result = new ArrayImgFactory<FloatType>().create(new long[] {X, Y, planes.length*n}, new FloatType());
+
+		// Whether the stack covers a full turn depends on the spacing
+		final List<RealRandomAccessible<FloatType>> interpolants = new ArrayList<RealRandomAccessible<FloatType>>();
+		for (double spacing : spacings)
+			interpolants.add(Views.interpolate(
+					reconstructor.getSampledSource(source, spacing), new NLinearInterpolatorFactory<FloatType>()));
+
+		// Same origin as the full reconstruction
+		final double[] origin_XYZ = {X/2, Y/2, 0};
+
+		List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+		final int todo = ((X+TILE_SIZE-1)/TILE_SIZE)*((Y+TILE_SIZE-1)/TILE_SIZE)*((n+CANDIDATES_PER_TASK-1)/CANDIDATES_PER_TASK);
+		final AtomicInteger done = new AtomicInteger();
+		for (int ty=0; ty<Y; ty+=TILE_SIZE)
+			for (int tx=0; tx<X; tx+=TILE_SIZE)
+				for (int c0=0; c0<n; c0+=CANDIDATES_PER_TASK) {
+					final int[] tile = {tx, ty, Math.min(tx+TILE_SIZE, X), Math.min(ty+TILE_SIZE, Y)};
+					final int[] candidates = {c0, Math.min(c0+CANDIDATES_PER_TASK, n)};
+
+					tasks.add(() -> {
+						sweepTile(interpolants, result.randomAccess(), tile, candidates, planes, origin_XYZ);
+						callback.progressUpdate((double)done.incrementAndGet()/todo);
+						return true;
+					});
+				}
+
+		ExecutorService executor = Executors.newFixedThreadPool(reconstructor.getNWorkers());
+		try {
+			for (Future<Boolean> f : executor.invokeAll(tasks))
+				f.get();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Sweep failed", e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+
+		return result;
+	}
+
+	private void sweepTile(List<RealRandomAccessible<FloatType>> interpolants, RandomAccess<FloatType> out,
+			int[] tile, int[] candidates, long[] planes, double[] origin_XYZ) {
+		final int n = biases.size();
+		final int[] h_r_theta_i = reconstructor.h_r_theta_i;
+		final boolean fastMath = reconstructor.isFastMath();
+
+		double[] x_y_z = {0,0,0};
+		double[] h_r_theta = {0,0,0};
+		double[] h_r_theta_fast = {0,0,0};
+
+		List<RealRandomAccess<FloatType>> inputs = new ArrayList<RealRandomAccess<FloatType>>();
+		for (int c=candidates[0]; c<candidates[1]; c++)
+			inputs.add(interpolants.get(c).realRandomAccess());
+
+		for (int y=tile[1]; y<tile[3]; y++)
+			for (int x=tile[0]; x<tile[2]; x++) {
+				x_y_z[0] = x;
+				x_y_z[1] = y;
+				out.setPosition(x, 0);
+				out.setPosition(y, 1);
+
+				for (int c=candidates[0]; c<candidates[1]; c++) {
+					double[] bias = biases.get(c);
+					double spacing = spacings.get(c);
+					RealRandomAccess<FloatType> input = inputs.get(c-candidates[0]);
+
+					for (int p=0; p<planes.length; p++) {
+						x_y_z[2] = planes[p];
+
+						final double[] h_r_theta_pre = fastMath ?
+								ReconstructFromRadialSlices.fromCubicCoordinatesFast(x_y_z, bias, origin_XYZ, spacing, h_r_theta_fast) :
+								ReconstructFromRadialSlices.fromCubicCoordinates(x_y_z, bias, origin_XYZ, spacing);
+
+						h_r_theta[h_r_theta_i[0]]=h_r_theta_pre[0];
+						h_r_theta[h_r_theta_i[1]]=h_r_theta_pre[1];
+						h_r_theta[h_r_theta_i[2]]=h_r_theta_pre[2];
+
+						input.setPosition(h_r_theta);
+						out.setPosition((long)p*n+c, 2);
+						out.get().set(input.get());
+					}
+				}
+			}
+	}
+}
@@ -1,29 +1,40 @@
 package org.thomaspengo.tslim;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.Vector;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
 import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccess;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
-import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 
 import org.thomaspengo.tslim.gui.ReconstructionCallback;
 import org.thomaspengo.tslim.gui.ReconstructionProgress;
+import org.thomaspengo.tslim.util.FastMath;
 
 
 /**
@@ -34,6 +45,11 @@ import org.thomaspengo.tslim.gui.ReconstructionProgress;
 public class ReconstructFromRadialSlices {
 	
 	private static final int RADIAL_ANGLE_SPACING_DEFAULT = 1;
+	
+	private static final float RAD_TO_DEG = (float) (180/Math.PI);
+	
+	/** Maximum error on theta, in degrees, of the fast math mode */
+	public static final double FAST_MATH_MAX_ERROR_DEGREES = 1e-4;
 
 	private int n_chunks = Runtime.getRuntime().availableProcessors();
 	
@@ -73,6 +89,13 @@ public class ReconstructFromRadialSlices {
 		return sourceOrder;
 	}
 	
+	/**
+	 * @return the dimension of the input stack along theta, in the source order
+	 */
+	public int getThetaDimension() {
+		return h_r_theta_i[2];
+	}
+	
 	private RHT_order destOrder;	
 	public void setDestOrder(RHT_order newOrder) {
 		destOrder = newOrder;
@@ -82,6 +105,13 @@ public class ReconstructFromRadialSlices {
 		return sourceOrder;
 	}
 	
+	/**
+	 * @return the dimension of the output along Z (the rotation axis), in the destination order
+	 */
+	public int getZDimension() {
+		return x_y_z_i[2];
+	}
+	
 	
 	/**
 	 * Set the interval between two successive slices in degrees.
@@ -103,8 +133,58 @@ public class ReconstructFromRadialSlices {
 		return radialStackAngleSpacing;
 	}
 
+	private boolean fastMath = false;
+	
+	/**
+	 * Use single precision arithmetic and a polynomial approximation of atan2 in the 
+	 * coordinate transform. The angular error stays below FAST_MATH_MAX_ERROR_DEGREES, 
+	 * which is less than a thousandth of the angle spacing for spacings of 0.1 degrees or more.
+	 * Default is false.
+	 * 
+	 * @param fastMath
+	 */
+	public void setFastMath(boolean fastMath) {
+		this.fastMath = fastMath;
+	}
+	
+	public boolean isFastMath() {
+		return fastMath;
+	}
+	
 	private Img<FloatType> source;
 	
+	private SourceCorrection sourceCorrection = null;
+	
+	private long thetaOffset = 0;
+	
+	/**
+	 * Set the index, in the acquisition, of the first slice of the input stack, when only part of 
+	 * the slices have been loaded (see {@link AngularCoverage}). Default is 0.
+	 * 
+	 * @param firstSlice
+	 */
+	public void setThetaOffset(long firstSlice) {
+		this.thetaOffset = firstSlice;
+	}
+	
+	public long getThetaOffset() {
+		return thetaOffset;
+	}
+	
+	/**
+	 * Set the background, flat-field and per-angle corrections applied to the radial stack as it is
+	 * sampled, without making a corrected copy of it. Default is null (no correction).
+	 * 
+	 * @param correction
+	 */
+	public void setSourceCorrection(SourceCorrection correction) {
+		this.sourceCorrection = correction;
+	}
+	
+	public SourceCorrection getSourceCorrection() {
+		return sourceCorrection;
+	}
+	
 	/**
 	 * Set the number of workers. Default is the number of cores as reported by Runtime.getRuntime().availableProcessors()
 	 * 
@@ -114,6 +194,164 @@ public class ReconstructFromRadialSlices {
 		this.n_chunks = n_workers;
 	}
 	
+	public int getNWorkers() {
+		return n_chunks;
+	}
+	
+	private MemoryPlanner memoryPlanner = new MemoryPlanner();
+	
+	/**
+	 * Set the memory budget in bytes the reconstruction has to fit in. Default is the maximum heap size.
+	 * 
+	 * @param bytes
+	 */
+	public void setMemoryBudget(long bytes) {
+		memoryPlanner.setBudget(bytes);
+	}
+	
+	public long getMemoryBudget() {
+		return memoryPlanner.getBudget();
+	}
+	
+	private List<SlabListener> slabListeners = new CopyOnWriteArrayList<SlabListener>();
+	
+	/**
+	 * Register a listener to be notified of each slab of the output as soon as it is reconstructed.
+	 * 
+	 * @param listener
+	 */
+	public void addSlabListener(SlabListener listener) {
+		slabListeners.add(listener);
+	}
+	
+	public void removeSlabListener(SlabListener listener) {
+		slabListeners.remove(listener);
+	}
+	
+	private List<VoxelReducer<?>> reducers = new CopyOnWriteArrayList<VoxelReducer<?>>();
+	
+	/**
+	 * Register a reducer (projection, histogram...) computed while the output is reconstructed. 
+	 * Its result is available once createReconstruction returns.
+	 * 
+	 * @param reducer
+	 */
+	public void addReducer(VoxelReducer<?> reducer) {
+		reducers.add(reducer);
+	}
+	
+	public void removeReducer(VoxelReducer<?> reducer) {
+		reducers.remove(reducer);
+	}
+	
+	private static final int BACKGROUND_TILE_SIZE = 16;
+	private static final int BACKGROUND_BLOCK_SIZE = 8;
+	
+	private double backgroundThreshold = Double.NaN;
+	private float backgroundValue = 0;
+	
+	/**
+	 * Skip the tiles of the output that can only read values of the input up to the threshold, 
+	 * and fill them with a constant instead. The tiles are found with a coarse min/max pyramid of
+	 * the input, computed in a first pass. Tiles that can only read a single value are filled with 
+	 * it. Default is NaN (no skipping).
+	 * 
+	 * @param threshold the highest value of the background
+	 * @param value the value of the skipped tiles
+	 */
+	public void setBackgroundThreshold(double threshold, float value) {
+		this.backgroundThreshold = threshold;
+		this.backgroundValue = value;
+	}
+	
+	public double getBackgroundThreshold() {
+		return backgroundThreshold;
+	}
+	
+	private int planeAxis = 2;
+	private LongSupplier planeFocus = null;
+	
+	/**
+	 * Reconstruct the output plane by plane along one of its dimensions, starting with the plane 
+	 * nearest to the focus. The focus is read again each time a worker starts a new plane, so it 
+	 * can follow the plane being viewed. Default is null (slabs along the largest dimension, in order).
+	 * 
+	 * @param axis the dimension of the output the planes are cut along
+	 * @param focus the position of the plane to compute first, or null
+	 */
+	public void setPlaneOrder(int axis, LongSupplier focus) {
+		this.planeAxis = axis;
+		this.planeFocus = focus;
+	}
+	
+	private static final int CHECKPOINT_SLABS_DEFAULT = 64;
+	
+	private File checkpointDirectory = null;
+	private long checkpointSlabThickness = 0;
+	private boolean checkpointHashAll = false;
+	private ReconstructionCheckpoint checkpoint = null;
+	
+	/**
+	 * Set the scratch directory where completed slabs are saved, so that an interrupted reconstruction
+	 * of the same input with the same parameters only computes the missing slabs. Default is null (no checkpoint).
+	 * 
+	 * @param scratch
+	 */
+	public void setCheckpointDirectory(File scratch) {
+		this.checkpointDirectory = scratch;
+	}
+	
+	public File getCheckpointDirectory() {
+		return checkpointDirectory;
+	}
+	
+	/**
+	 * Set the thickness of the checkpointed slabs, in pixels along the largest dimension of the output. 
+	 * At most one slab per worker is lost when a reconstruction is interrupted. Default (0) splits
+	 * the output in 64 slabs. 
+	 * 
+	 * @param thickness
+	 */
+	public void setCheckpointSlabThickness(long thickness) {
+		this.checkpointSlabThickness = thickness;
+	}
+	
+	/**
+	 * Identify the input of a checkpoint by all of its voxels, rather than by its dimensions and a 
+	 * sample of its voxels. Safer if inputs of the same size differ in few voxels, but the whole input 
+	 * is read before the reconstruction starts. Default is false.
+	 * 
+	 * @param hashAll
+	 */
+	public void setCheckpointHashAll(boolean hashAll) {
+		this.checkpointHashAll = hashAll;
+	}
+	
+	/**
+	 * @return the checkpoint of the last reconstruction, or null if checkpointing was off
+	 */
+	public ReconstructionCheckpoint getCheckpoint() {
+		return checkpoint;
+	}
+	
+	/**
+	 * @return a description of all the parameters that affect the reconstruction
+	 */
+	String getParameterString() {
+		long[] sourceDimensions = new long[source.numDimensions()];
+		source.dimensions(sourceDimensions);
+		
+		return "source="+Arrays.toString(sourceDimensions)
+				+" sourceOrder="+sourceOrder
+				+" destOrder="+destOrder
+				+" spacing="+radialStackAngleSpacing
+				+" bias="+Arrays.toString(bias)
+				+" fastMath="+fastMath
+				+" correction="+sourceCorrection
+				+" thetaOffset="+thetaOffset
+				+" background="+backgroundThreshold+","+backgroundValue;
+	}
+	
 	public ReconstructFromRadialSlices() {
 		 setSourceOrder(RHT_order.H_R_Theta);
 		 setDestOrder(RHT_order.R_Theta_H);
@@ -133,8 +371,26 @@ public class ReconstructFromRadialSlices {
 		this.source = in;
 	}
 	
+	public Img<FloatType> getInputStack() {
+		return source;
+	}
+	
 	ExecutorService actionExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
 	ExecutorService chunkExecutor = Executors.newFixedThreadPool(n_chunks);
+	int chunkExecutorSize = n_chunks;
+	
+	/**
+	 * Make sure the chunk executor has the requested number of threads and has not been shut down.
+	 */
+	private synchronized ExecutorService getChunkExecutor(int n_workers) {
+		if (chunkExecutor.isShutdown() || chunkExecutorSize!=n_workers) {
+			chunkExecutor.shutdown();
+			chunkExecutor = Executors.newFixedThreadPool(n_workers);
+			chunkExecutorSize = n_workers;
+		}
+		
+		return chunkExecutor;
+	}
 	
 	public void startReconstruction(ReconstructionProgress progCallback, ReconstructionCallback<FloatType> recCallback) {
 		actionExecutor.execute(() -> {
@@ -148,16 +404,28 @@ public class ReconstructFromRadialSlices {
 		});
 	}
 	
-	public void killAllReconstructions() {
+	public synchronized void killAllReconstructions() {
 		//actionExecutor.shutdownNow();
 		chunkExecutor.shutdownNow();
 	}
-
-    public Img< FloatType > createReconstruction(ReconstructionProgress callback) {
-
-       	// Loop the output image and fetch the corresponding angle image stack
-        long R = source.dimension(h_r_theta_i[1]);
-        long H = source.dimension(h_r_theta_i[0]);
+	
+	/**
+	 * Stop the threads of the reconstructor once it is no longer needed. Running reconstructions
+	 * are completed, but no new one can be started.
+	 */
+	public synchronized void shutdown() {
+		actionExecutor.shutdown();
+		chunkExecutor.shutdown();
+	}
+	
+	/**
+	 * Returns the dimensions of the reconstruction of a radial stack, in the destination order.
+	 * 
+	 * @param sourceDimensions the dimensions of the radial stack, in the source order
+	 */
+	public long[] getOutputDimensions(long[] sourceDimensions) {
+        long R = sourceDimensions[h_r_theta_i[1]];
+        long H = sourceDimensions[h_r_theta_i[0]];
         long[] outputDimensions = {0,0,0};
         
         // The order of dimensions of the output needs not be XYZ. They are determined by x_y_z_i.
@@ -165,12 +433,116 @@ public class ReconstructFromRadialSlices {
         outputDimensions[x_y_z_i[1]] = 2*R;
         outputDimensions[x_y_z_i[2]] = H;
         
+        return outputDimensions;
+	}
+	
+	/**
+	 * Estimate the memory needed to reconstruct a radial stack of the given dimensions and choose 
+	 * the output layout and the number of workers. Call this before loading the input to fail early.
+	 * 
+	 * @param sourceDimensions the dimensions of the radial stack, in the source order
+	 * 
+	 * @return the memory plan
+	 * @throws RuntimeException with a memory report if the reconstruction cannot fit the memory budget 
+	 */
+	public MemoryPlanner.MemoryPlan planMemory(long[] sourceDimensions) {
+		long[] outputDimensions_XYZ = toXYZ(getOutputDimensions(sourceDimensions));
+		
+		long perWorkerBytes = 0;
+		for (SlabListener l : slabListeners)
+			perWorkerBytes += l.getBytesPerWorker();
+		for (VoxelReducer<?> r : reducers)
+			perWorkerBytes += r.getBytesPerWorker(outputDimensions_XYZ);
+		
+		// The background pyramid is shared by all workers
+		long cacheBytes = Double.isNaN(backgroundThreshold) ? 0 : 
+				BackgroundPyramid.getBytes(sourceDimensions, h_r_theta_i, BACKGROUND_BLOCK_SIZE);
+		
+		return memoryPlanner.planOrFail(
+				sourceDimensions, 
+				getOutputDimensions(sourceDimensions), 
+				cacheBytes, 
+				perWorkerBytes, 
+				n_chunks);
+	}
+
+	/**
+	 * @return the dimensions of the output in the X_Y (plane of rotation) Z (axial) order
+	 */
+	private long[] toXYZ(long[] outputDimensions) {
+		return new long[] {
+				outputDimensions[x_y_z_i[0]], 
+				outputDimensions[x_y_z_i[1]], 
+				outputDimensions[x_y_z_i[2]]
+			};
+	}
+	
+	/**
+	 * @return the input as it is sampled by the reconstruction: corrected, and 0 outside of the stack
+	 */
+	RandomAccessible<FloatType> getSampledSource() {
+		return getSampledSource(source, radialStackAngleSpacing);
+	}
+	
+	/**
+	 * @param stack the radial stack, in the source order
+	 * @param spacing the angle between two of its slices, in degrees
+	 * 
+	 * @return the stack as it is sampled by the reconstruction: corrected, and 0 outside of it. If it 
+	 * covers a full turn, the last slice is interpolated with the first one.
+	 */
+	RandomAccessible<FloatType> getSampledSource(RandomAccessibleInterval<FloatType> stack, double spacing) {
+		RandomAccessible<FloatType> sampled = Views.extendZero(stack);
+		if (sourceCorrection!=null)
+			sampled = sourceCorrection.apply(sampled, stack, h_r_theta_i[2]);
+		
+		if (thetaOffset==0 && isFullTurn(stack.dimension(h_r_theta_i[2]), spacing)) {
+			// Slice n is slice 0 again
+			long[] max = Intervals.maxAsLongArray(stack);
+			max[h_r_theta_i[2]]++;
+			sampled = Views.extendZero(Views.interval(Views.extendPeriodic(Views.interval(sampled, stack)), Intervals.minAsLongArray(stack), max));
+		}
+		
+		if (thetaOffset!=0)
+			sampled = Views.translate(sampled, getThetaTranslation());
+		
+		return sampled;
+	}
+	
+	/**
+	 * @return true if the slices cover exactly 360 degrees
+	 */
+	static boolean isFullTurn(long slices, double spacing) {
+		return Math.abs(slices*spacing-360)<1e-6;
+	}
+	
+	private long[] getThetaTranslation() {
+		long[] translation = new long[source.numDimensions()];
+		translation[h_r_theta_i[2]] = thetaOffset;
+		return translation;
+	}
+	
+    public Img< FloatType > createReconstruction(ReconstructionProgress callback) {
+    	
+    	// Fail before allocating anything if the output does not fit
+    	long[] sourceDimensions = new long[source.numDimensions()];
+    	source.dimensions(sourceDimensions);
+    	MemoryPlanner.MemoryPlan plan = planMemory(sourceDimensions);
+    	int n_workers = plan.getWorkers();
+
+       	// Loop the output image and fetch the corresponding angle image stack
+        long[] outputDimensions = getOutputDimensions(sourceDimensions);
+        
         RealRandomAccessible< FloatType > interpolant1 = Views.interpolate(
-                Views.extendZero( source ), new NLinearInterpolatorFactory< FloatType >() );
+                getSampledSource(), new NLinearInterpolatorFactory< FloatType >() );
 
-        ImgFactory<FloatType> outputImageFactory = new ArrayImgFactory< FloatType >();
+        ImgFactory<FloatType> outputImageFactory = plan.createOutputFactory();
     	Img<FloatType> output = outputImageFactory.create(outputDimensions, interpolant1.realRandomAccess().get());
     	
+    	// Where the input is only background, in the (translated) coordinates the reconstruction samples it at
+    	final BackgroundPyramid pyramid = Double.isNaN(backgroundThreshold) ? null : 
+    			new BackgroundPyramid(getSampledSource(), Views.translate(source, getThetaTranslation()), h_r_theta_i, BACKGROUND_BLOCK_SIZE);
+    	
     	// Note that the origin_XYZ dimension order are always X_Y (plane of rotation) Z (axial)
     	final double[] origin_XYZ = new double[] {
     			output.dimension(x_y_z_i[0])/2,
@@ -185,25 +557,73 @@ public class ReconstructFromRadialSlices {
     		if (outputDimensions[maxDim_i]==maxDim_max)
     			break;
 
+    	long slabThickness = maxDim_max/n_workers;
+    	
+    	// Planes in the order they are needed
+    	final LongSupplier focus = planeFocus;
+    	if (focus!=null) {
+    		maxDim_i = planeAxis;
+    		maxDim_max = outputDimensions[planeAxis];
+    		slabThickness = 1;
+    	}
+    	
+    	// With a checkpoint, the slabs are thinner (and independent of the number of workers) so that little work is lost
+    	List<SlabListener> listeners = new ArrayList<SlabListener>(slabListeners);
+    	checkpoint = null;
+    	if (checkpointDirectory!=null) {
+    		checkpoint = new ReconstructionCheckpoint(checkpointDirectory, source, getParameterString(), outputDimensions, maxDim_i, checkpointHashAll);
+    		listeners.add(checkpoint);
+    		
+    		slabThickness = checkpointSlabThickness>0 ? 
+    				checkpointSlabThickness : 
+    				(maxDim_max+CHECKPOINT_SLABS_DEFAULT-1)/CHECKPOINT_SLABS_DEFAULT;
+    	}
+    	
+    	// Some listeners (e.g. chunked writers) need slabs aligned to their blocks
+    	long alignment = 1;
+    	for (SlabListener l : listeners)
+    		alignment = lcm(alignment, l.getSlabAlignment());
+    	slabThickness = Math.max(1, (slabThickness+alignment-1)/alignment)*alignment;
+
+    	for (SlabListener l : listeners)
+    		l.outputCreated(output);
+    	
+    	for (VoxelReducer<?> r : reducers)
+    		r.start(toXYZ(outputDimensions));
+    	
+    	// Restored slabs are not written again, but the other listeners and the reducers still need them
+    	List<SlabListener> restoredListeners = new ArrayList<SlabListener>(slabListeners);
+
     	// Create a list of ChunkProcessors
-    	List<ChunkProcessor> processors = new Vector<ChunkProcessor>(n_chunks);
+    	List<ChunkProcessor> processors = new Vector<ChunkProcessor>(n_workers);
 
-    	for (long maxDim_min=0; maxDim_min<maxDim_max; maxDim_min+=maxDim_max/n_chunks) {
+    	for (long maxDim_min=0; maxDim_min<maxDim_max; maxDim_min+=slabThickness) {
     		long[] maxDim_minChunk = new long[outputDimensions.length];
     		long[] maxDim_maxChunk = Arrays.stream(outputDimensions.clone()).map((a) -> a-1).toArray();
     		
     		maxDim_minChunk[maxDim_i]=maxDim_min;
-    		maxDim_maxChunk[maxDim_i]=maxDim_min+(maxDim_max/n_chunks)-1;
+    		maxDim_maxChunk[maxDim_i]=maxDim_min+slabThickness-1;
     		
-    		if (maxDim_maxChunk[maxDim_i]>maxDim_max) {
+    		if (maxDim_maxChunk[maxDim_i]>=maxDim_max) {
     			maxDim_maxChunk[maxDim_i] = maxDim_max-1;
     		}
     		
+    		IntervalView<FloatType> slab = Views.interval(output, maxDim_minChunk, maxDim_maxChunk);
+    		
+    		// Already computed by an interrupted reconstruction
+    		boolean restored = checkpoint!=null && checkpoint.restore(slab);
+    		if (restored && restoredListeners.isEmpty() && reducers.isEmpty())
+    			continue;
+    		
     		processors.add(new ChunkProcessor(
-    				Views.interval(output, maxDim_minChunk, maxDim_maxChunk), 
+    				slab, 
     				origin_XYZ.clone(), 
     				bias.clone(),
-    				interpolant1.realRandomAccess()));
+    				interpolant1.realRandomAccess(),
+    				restored ? restoredListeners : listeners,
+    				new ArrayList<VoxelReducer<?>>(reducers),
+    				restored ? null : pyramid,
+    				restored));
     	}
     	
     	// Update progress every 250ms
@@ -215,18 +635,27 @@ public class ReconstructFromRadialSlices {
     			for (ChunkProcessor c : processors)
     				progressT += c.getProgress();
     			
-    			callback.progressUpdate(progressT/n_chunks);
+    			callback.progressUpdate(progressT/processors.size());
     		}}, 0, 500);
     	
     	// Wait for each thread to finish execution
     	try {
-    		chunkExecutor.invokeAll(processors);
+    		List<? extends Callable<Boolean>> tasks = focus==null ? processors : nearestFirst(processors, n_workers, maxDim_i, focus);
+    		for (Future<Boolean> f : getChunkExecutor(n_workers).invokeAll(tasks))
+    			f.get();
 		} catch (InterruptedException e) {
 			e.printStackTrace();
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Reconstruction failed", e.getCause());
 		} finally {    	
 			progressUpdater.cancel();
+			if (checkpoint!=null)
+				checkpoint.flush();
 		}
     	
+    	for (VoxelReducer<?> r : reducers)
+    		r.finish();
+    	
 		return output;
     }
     
@@ -236,17 +665,30 @@ public class ReconstructFromRadialSlices {
     	double[] origin_XYZ;
     	double[] bias;
     	double progress;
+    	List<SlabListener> listeners;
+    	List<VoxelReducer<?>> reducers;
+    	BackgroundPyramid pyramid;
+    	boolean restored;
     	
     	public double getProgress() {
 			return progress;
 		}
     	
-    	ChunkProcessor(IntervalView<FloatType> output, double[] origin_XYZ, double[] bias, RealRandomAccess<FloatType> input) {
+    	/**
+    	 * @param pyramid the extrema of the input, to skip background tiles, or null
+    	 * @param restored true if the output has been restored from a checkpoint, and only needs to be reduced
+    	 */
+    	ChunkProcessor(IntervalView<FloatType> output, double[] origin_XYZ, double[] bias, RealRandomAccess<FloatType> input, 
+    			List<SlabListener> listeners, List<VoxelReducer<?>> reducers, BackgroundPyramid pyramid, boolean restored) {
     		this.output = output;
     		this.input = input;
     		this.origin_XYZ=origin_XYZ;
     		this.bias=bias;
     		this.progress = 0;
+    		this.listeners = listeners;
+    		this.reducers = reducers;
+    		this.pyramid = pyramid;
+    		this.restored = restored;
     	}
     	
 	    public Boolean call() {
@@ -257,40 +699,259 @@ public class ReconstructFromRadialSlices {
     		
 	    	double[] x_y_z = {0,0,0};
 			double[] h_r_theta = {0,0,0};
-	    	Cursor<FloatType> cursor = output.localizingCursor();
-	    	while (cursor.hasNext()) {
-	    		// Have to make assumption that it is 3D (xyz)
-	    		// Origin of the final stack (x,y,z) is the center of the first slice (X/2,Y/2,0)
-	    		// Origin of the angle stack (h,r,theta) is the top left corner of the first slice (0,0,0)
-	    		cursor.fwd();
+			double[] h_r_theta_fast = {0,0,0};
+			
+			VoxelReducer.Accumulator[] accumulators = new VoxelReducer.Accumulator[reducers.size()];
+			for (int i=0; i<accumulators.length; i++)
+				accumulators[i] = reducers.get(i).getAccumulator();
+			
+			for (Interval tile : getTiles()) {
+				// Constant tiles are filled without sampling the input, and reduced in bulk
+				final float fill = getFill(tile);
+				if (!Float.isNaN(fill)) {
+					for (FloatType t : Views.interval(output, tile))
+						t.set(fill);
+					
+					int[] min_XYZ = new int[3], max_XYZ = new int[3];
+					for (int k=0; k<3; k++) {
+						min_XYZ[k] = (int) tile.min(x_y_z_i[k]);
+						max_XYZ[k] = (int) tile.max(x_y_z_i[k]);
+					}
+					for (VoxelReducer.Accumulator a : accumulators)
+						a.addConstant(min_XYZ, max_XYZ, fill);
+					
+					done += Intervals.numElements(tile);
+					progress = (double)done/todo;
+					continue;
+				}
+			
+		    	Cursor<FloatType> cursor = Views.interval(output, tile).localizingCursor();
+		    	while (cursor.hasNext()) {
+		    		// Have to make assumption that it is 3D (xyz)
+		    		// Origin of the final stack (x,y,z) is the center of the first slice (X/2,Y/2,0)
+		    		// Origin of the angle stack (h,r,theta) is the top left corner of the first slice (0,0,0)
+		    		cursor.fwd();
 	    		
-	    		x_y_z[0] = cursor.getDoublePosition(x_y_z_i[0]);
-	    		x_y_z[1] = cursor.getDoublePosition(x_y_z_i[1]);
-	    		x_y_z[2] = cursor.getDoublePosition(x_y_z_i[2]);
+		    		x_y_z[0] = cursor.getDoublePosition(x_y_z_i[0]);
+		    		x_y_z[1] = cursor.getDoublePosition(x_y_z_i[1]);
+		    		x_y_z[2] = cursor.getDoublePosition(x_y_z_i[2]);
 	    		
-	    		// At this point the coordinate order is in the standard order HRT and XYZ
-	    		final double[] h_r_theta_pre = fromCubicCoordinates(x_y_z, bias, origin_XYZ, radialStackAngleSpacing);
+		    		if (restored) {
+		    			reduce(accumulators, x_y_z, cursor.get().get());
+		    			progress = (double)++done/todo;
+		    			continue;
+		    		}
 	    		
-	    		h_r_theta[h_r_theta_i[0]]=h_r_theta_pre[0];
-	    		h_r_theta[h_r_theta_i[1]]=h_r_theta_pre[1];
-	    		h_r_theta[h_r_theta_i[2]]=h_r_theta_pre[2];
+		    		// At this point the coordinate order is in the standard order HRT and XYZ
+		    		final double[] h_r_theta_pre = fastMath ? 
+		    				fromCubicCoordinatesFast(x_y_z, bias, origin_XYZ, radialStackAngleSpacing, h_r_theta_fast) :
+		    				fromCubicCoordinates(x_y_z, bias, origin_XYZ, radialStackAngleSpacing);
 	    		
-	    		input.setPosition(h_r_theta);
-	    		FloatType f = input.get();
-	    		cursor.get().set(f);
+		    		h_r_theta[h_r_theta_i[0]]=h_r_theta_pre[0];
+		    		h_r_theta[h_r_theta_i[1]]=h_r_theta_pre[1];
+		    		h_r_theta[h_r_theta_i[2]]=h_r_theta_pre[2];
 	    		
-	    		progress = (double)++done/todo;
-	    	}
+		    		input.setPosition(h_r_theta);
+		    		FloatType f = input.get();
+		    		cursor.get().set(f);
+	    		
+		    		reduce(accumulators, x_y_z, f.get());
+	    		
+		    		progress = (double)++done/todo;
+		    	}
+			}
+	    	
+	    	for (SlabListener l : listeners)
+	    		if (restored)
+	    			l.slabRestored(output);
+	    		else
+	    			l.slabCompleted(output);
 	    	
 	    	return true;
 	    }
+	    
+	    /**
+	     * @return the slab in tiles when background tiles can be skipped, or the whole slab
+	     */
+	    private List<Interval> getTiles() {
+	    	List<Interval> tiles = new ArrayList<Interval>();
+	    	if (pyramid==null) {
+	    		tiles.add(output);
+	    		return tiles;
+	    	}
+	    	
+	    	long[] min = new long[3], max = new long[3];
+	    	for (min[2]=output.min(2); min[2]<=output.max(2); min[2]+=BACKGROUND_TILE_SIZE)
+	    		for (min[1]=output.min(1); min[1]<=output.max(1); min[1]+=BACKGROUND_TILE_SIZE)
+	    			for (min[0]=output.min(0); min[0]<=output.max(0); min[0]+=BACKGROUND_TILE_SIZE) {
+	    				for (int d=0; d<3; d++)
+	    					max[d] = Math.min(min[d]+BACKGROUND_TILE_SIZE-1, output.max(d));
+	    				tiles.add(new FinalInterval(min, max));
+	    			}
+	    	
+	    	return tiles;
+	    }
+	    
+	    /**
+	     * @return the value of every voxel of the tile if it is background or constant, NaN if it has to be computed
+	     */
+	    private float getFill(Interval tile) {
+	    	if (pyramid==null)
+	    		return Float.NaN;
+	    	
+	    	long[] min_XYZ = new long[3], max_XYZ = new long[3];
+	    	for (int k=0; k<3; k++) {
+	    		min_XYZ[k] = tile.min(x_y_z_i[k]);
+	    		max_XYZ[k] = tile.max(x_y_z_i[k]);
+	    	}
+	    	
+	    	float[] extrema = getFootprintExtrema(pyramid, min_XYZ, max_XYZ, origin_XYZ, bias, radialStackAngleSpacing);
+	    	if (extrema==null)
+	    		return Float.NaN;
+	    	if (extrema[1]<=backgroundThreshold)
+	    		return backgroundValue;
+	    	if (extrema[0]==extrema[1])
+	    		return extrema[0];
+	    	
+	    	return Float.NaN;
+	    }
+	    
+	    private void reduce(VoxelReducer.Accumulator[] accumulators, double[] x_y_z, float value) {
+	    	for (VoxelReducer.Accumulator a : accumulators)
+	    		a.add((int) x_y_z[0], (int) x_y_z[1], (int) x_y_z[2], value);
+	    }
+    }
+    
+    /**
+     * @return one task per worker, each taking the pending slab nearest to the focus whenever it starts a new one
+     */
+    private static List<Callable<Boolean>> nearestFirst(List<ChunkProcessor> processors, int n_workers, int axis, LongSupplier focus) {
+    	final List<ChunkProcessor> pending = new ArrayList<ChunkProcessor>(processors);
+    	
+    	List<Callable<Boolean>> workers = new ArrayList<Callable<Boolean>>();
+    	for (int i=0; i<n_workers; i++)
+    		workers.add(() -> {
+    			ChunkProcessor next;
+    			while (!Thread.currentThread().isInterrupted() && (next = takeNearest(pending, axis, focus.getAsLong()))!=null)
+    				next.call();
+    			
+    			return true;
+    		});
+    	
+    	return workers;
+    }
+    
+    private static ChunkProcessor takeNearest(List<ChunkProcessor> pending, int axis, long focus) {
+    	synchronized (pending) {
+    		ChunkProcessor nearest = null;
+    		long nearestDistance = Long.MAX_VALUE;
+    		for (ChunkProcessor p : pending) {
+    			long distance = Math.max(0, Math.max(p.output.min(axis)-focus, focus-p.output.max(axis)));
+    			if (distance<nearestDistance) {
+    				nearest = p;
+    				nearestDistance = distance;
+    			}
+    		}
+    		
+    		pending.remove(nearest);
+    		return nearest;
+    	}
+    }
+    
+    /**
+     * Bound the values read by the reconstruction of a box of the output, from the range of 
+     * (h,r,theta) coordinates of its voxels. 
+     * 
+     * @param min_XYZ the first voxel of the box, X_Y_Z
+     * @param max_XYZ the last voxel of the box, X_Y_Z
+     * 
+     * @return the minimum and maximum value, or null if the box reaches the rotation circle or the axis
+     */
+    static float[] getFootprintExtrema(BackgroundPyramid pyramid, long[] min_XYZ, long[] max_XYZ, double[] origin_XYZ, double[] bias, double spacing) {
+    	double x0 = min_XYZ[0]-origin_XYZ[0], x1 = max_XYZ[0]-origin_XYZ[0];
+    	double y0 = min_XYZ[1]-origin_XYZ[1], y1 = max_XYZ[1]-origin_XYZ[1];
+    	
+    	// Nearest and farthest squared distance to the axis
+    	double nx = x0>0 ? x0 : (x1<0 ? x1 : 0), ny = y0>0 ? y0 : (y1<0 ? y1 : 0);
+    	double fx = Math.max(Math.abs(x0), Math.abs(x1)), fy = Math.max(Math.abs(y0), Math.abs(y1));
+    	double r2min = nx*nx+ny*ny, r2max = fx*fx+fy*fy;
+    	double br2 = bias[0]*bias[0]+bias[1]*bias[1];
+    	
+    	// Undefined inside the rotation circle, every angle around the axis
+    	if (r2min<=br2 || r2min==0)
+    		return null;
+    	
+    	// Interpolation reads the next voxel along each dimension
+    	long[] from = {min_XYZ[2], (long) Math.floor(Math.sqrt(r2min-br2)), 0};
+    	long[] to = {max_XYZ[2]+1, (long) Math.floor(Math.sqrt(r2max-br2))+1, 0};
+    	
+    	// The box does not contain the axis: the extreme directions are at its corners
+    	double phi = Math.atan2((y0+y1)/2, (x0+x1)/2);
+    	double dmin = 0, dmax = 0;
+    	for (double x : new double[] {x0, x1})
+    		for (double y : new double[] {y0, y1}) {
+    			double d = Math.atan2(y, x)-phi;
+    			if (d>Math.PI)
+    				d -= 2*Math.PI;
+    			if (d<-Math.PI)
+    				d += 2*Math.PI;
+    			dmin = Math.min(dmin, d);
+    			dmax = Math.max(dmax, d);
+    		}
+    	
+    	// Same as fromCubicCoordinates, acos is increasing with the distance
+    	double lo = Math.toDegrees(phi+dmin+Math.acos(Math.sqrt(br2/r2min)))+180;
+    	double hi = Math.toDegrees(phi+dmax+Math.acos(Math.sqrt(br2/r2max)))+180;
+    	double start = lo-360*Math.floor(lo/360), end = start+hi-lo;
+    	
+    	// One slice of margin for rounding (and fast math) on each side
+    	float[] extrema;
+    	if (end<360) {
+    		from[2] = (long) Math.floor(start/spacing)-1;
+    		to[2] = (long) Math.floor(end/spacing)+2;
+    		extrema = pyramid.getExtrema(from, to);
+    		
+    		// The last slice of a full turn is interpolated with the first one
+    		long turn = (long) Math.floor(360/spacing);
+    		if (to[2]>=turn) {
+    			from[2] = 0;
+    			to[2] -= turn;
+    			float[] more = pyramid.getExtrema(from, to);
+    			extrema[0] = Math.min(extrema[0], more[0]);
+    			extrema[1] = Math.max(extrema[1], more[1]);
+    		}
+    	} else {
+    		// Across 360 degrees
+    		from[2] = (long) Math.floor(start/spacing)-1;
+    		to[2] = (long) Math.floor(360/spacing)+2;
+    		extrema = pyramid.getExtrema(from, to);
+    		
+    		from[2] = -1;
+    		to[2] = (long) Math.floor(Math.min(end-360, 360)/spacing)+2;
+    		float[] more = pyramid.getExtrema(from, to);
+    		extrema[0] = Math.min(extrema[0], more[0]);
+    		extrema[1] = Math.max(extrema[1], more[1]);
+    	}
+    	
+    	return extrema;
+    }
+    
+    private static long lcm(long a, long b) {
+    	long gcd = a, r = b;
+    	while (r!=0) {
+    		long t = gcd % r;
+    		gcd = r;
+    		r = t;
+    	}
+    	
+    	return a/gcd*b;
     }
     
     /**
      * Returns the converted coordinates from x,y,z to h, rho, theta. 
      * 
      * - rho is the distance from the z-axis passing through originFinal
-     * - theta is between 0 and 360
+     * - theta is between 0 and 360 (divided by spacing)
      * - h is the same as z
      *  
      * @param x_y_z a double array of size 3 with the x,y and z coordinates with origin in upper left corner
@@ -300,7 +961,7 @@ public class ReconstructFromRadialSlices {
      * 
      * @return an array of size 3 with the coordinates in cylindrical form
      */
-	private static final double[] fromCubicCoordinates(final double[] x_y_z, double[] bias_x_y, final double[] originFinal, final double spacing) {
+	static final double[] fromCubicCoordinates(final double[] x_y_z, double[] bias_x_y, final double[] originFinal, final double spacing) {
 		double[] h_r_theta = new double[]  {0,0,0};
 		
 		final double dx = x_y_z[0]-originFinal[0];
@@ -321,11 +982,48 @@ public class ReconstructFromRadialSlices {
 		else
 			h_r_theta[2] = (Math.atan2(dy, dx)+Math.acos(Math.sqrt(br2/r2)))/Math.PI*180+180;
 		
+		// atan2 spans 360 degrees and acos adds up to 90 more
+		if (h_r_theta[2]>=360)
+			h_r_theta[2] -= 360;
+		
 		h_r_theta[2] /= spacing;
 		
 		return h_r_theta;
 	}
 
+    /**
+     * Single precision version of {@link #fromCubicCoordinates(double[], double[], double[], double)} using
+     * the approximation of atan2 of {@link FastMath}. The error on theta is below {@link #FAST_MATH_MAX_ERROR_DEGREES} (before dividing by spacing).
+     * 
+     * @param h_r_theta the array of size 3 where the cylindrical coordinates are written
+     * 
+     * @return h_r_theta
+     */
+	static final double[] fromCubicCoordinatesFast(final double[] x_y_z, double[] bias_x_y, final double[] originFinal, final double spacing, final double[] h_r_theta) {
+		final float dx = (float) (x_y_z[0]-originFinal[0]);
+		final float dy = (float) (x_y_z[1]-originFinal[1]);
+		
+		final float r2 = dx*dx+dy*dy;
+		final double br2 = bias_x_y[0]*bias_x_y[0]+bias_x_y[1]*bias_x_y[1];
+		
+		// The difference cancels near the rotation circle, keep it in double
+		final float r = (float) Math.sqrt(r2-br2);
+		h_r_theta[0] = x_y_z[2];
+		h_r_theta[1] = r;
+		
+		// acos(sqrt(br2/r2)) is ill-conditioned near the rotation circle, atan2(r, b) is the same angle
+		float theta = 0;
+		if (r2>br2)
+			theta = (FastMath.atan2(dy, dx)+FastMath.atan2(r, (float) Math.sqrt(br2)))*RAD_TO_DEG+180;
+		
+		if (theta>=360)
+			theta -= 360;
+		
+		h_r_theta[2] = theta/spacing;
+		
+		return h_r_theta;
+	}
+
 	private static final double[] toCubicCoordinates(final double[] h_r_theta, final double[] origin) {
 		double[] x_y_z = new double[] {0,0,0};
 		
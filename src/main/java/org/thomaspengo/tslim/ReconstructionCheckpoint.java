@@ -0,0 +1,279 @@
+package org.thomaspengo.tslim;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.Views;
+
+/**
+ * Persists the slabs of a reconstruction as they are completed, so that a reconstruction
+ * interrupted by a crash or a killed JVM can be resumed.
+ *
+ * The slabs are stored in a subdirectory of the scratch directory named after a hash of the
+ * input stack and of the reconstruction parameters, together with a manifest listing the
+ * completed slabs. By default only the dimensions of the stack and a sample of its voxels are
+ * hashed, so that opening a checkpoint does not read the whole input; hashing every voxel is
+ * optional. A slab is only added to the manifest once its file has been completely written.
+ * The manifest is saved at most once a second and when the reconstruction ends, so at most
+ * the slabs in progress and the ones of the last second are lost.
+ *
+ * @author Thomas Pengo
+ */
+public class ReconstructionCheckpoint implements SlabListener {
+
+	static final String MANIFEST = "manifest.properties";
+
+	/** Voxels of the input hashed by default */
+	static final int HASH_SAMPLES = 1<<16;
+
+	/** Minimum time between two saves of the manifest */
+	static final long SAVE_INTERVAL_MS = 1000;
+
+	private final File directory;
+	private final int slabAxis;
+	private final Properties manifest = new Properties();
+	private final AtomicInteger restored = new AtomicInteger();
+	private long lastSave;
+	private boolean unsaved;
+
+	/**
+	 * Open (or create) the checkpoint of a reconstruction, identifying the input by a sample of its voxels.
+	 *
+	 * @param scratch the scratch directory holding the checkpoints
+	 * @param source the input stack
+	 * @param parameters a description of all the parameters that affect the output
+	 * @param outputDimensions the dimensions of the output
+	 * @param slabAxis the output dimension along which the output is split in slabs
+	 */
+	public ReconstructionCheckpoint(File scratch, RandomAccessibleInterval<FloatType> source, String parameters, long[] outputDimensions, int slabAxis) {
+		this(scratch, source, parameters, outputDimensions, slabAxis, false);
+	}
+
+	/**
+	 * Open (or create) the checkpoint of a reconstruction.
+	 *
+	 * @param scratch the scratch directory holding the checkpoints
+	 * @param source the input stack
+	 * @param parameters a description of all the parameters that affect the output
+	 * @param outputDimensions the dimensions of the output
+	 * @param slabAxis the output dimension along which the output is split in slabs
+	 * @param hashAll identify the input by all of its voxels rather than by a sample of them
+	 */
+	public ReconstructionCheckpoint(File scratch, RandomAccessibleInterval<FloatType> source, String parameters, long[] outputDimensions, int slabAxis, boolean hashAll) {
+		this.slabAxis = slabAxis;
+
+		// The slabs are named after their position along the slab axis only
+		String key = hash(source, parameters+" slabAxis="+slabAxis, hashAll);
+		this.directory = new File(scratch, key);
+
+		File manifestFile = new File(directory, MANIFEST);
+		try {
+			if (manifestFile.exists()) {
+				try (InputStream in = new FileInputStream(manifestFile)) {
+					manifest.load(in);
+				}
+			}
+
+			// Slabs of another output cannot be restored, start again
+			if (!Arrays.toString(outputDimensions).equals(manifest.getProperty("dimensions")) ||
+					!String.valueOf(slabAxis).equals(manifest.getProperty("slabAxis"))) {
+				manifest.clear();
+				Files.createDirectories(directory.toPath());
+				manifest.setProperty("key", key);
+				manifest.setProperty("parameters", parameters);
+				manifest.setProperty("dimensions", Arrays.toString(outputDimensions));
+				manifest.setProperty("slabAxis", String.valueOf(slabAxis));
+				saveManifest();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not open the checkpoint in "+directory, e);
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Fill a slab of the output from the checkpoint, if it has been completed before.
+	 *
+	 * @param slab the slab of the output
+	 * @return true if the slab was restored and does not need to be computed
+	 */
+	public boolean restore(IntervalView<FloatType> slab) {
+		if (!manifest.containsKey(slabKey(slab)))
+			return false;
+
+		// Truncated, or written for another slab
+		File file = slabFile(slab);
+		if (file.length()!=4*Intervals.numElements(slab))
+			return false;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			Cursor<FloatType> cursor = Views.flatIterable(slab).cursor();
+			while (cursor.hasNext())
+				cursor.next().set(in.readFloat());
+		} catch (IOException e) {
+			// Corrupted or missing slab, compute it again
+			return false;
+		}
+
+		restored.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * @return the number of slabs restored from the checkpoint instead of being computed
+	 */
+	public int getRestoredSlabs() {
+		return restored.get();
+	}
+
+	public int getCompletedSlabs() {
+		return (int) manifest.keySet().stream().filter(k -> k.toString().startsWith("slab.")).count();
+	}
+
+	@Override
+	public void slabCompleted(IntervalView<FloatType> slab) {
+		File file = slabFile(slab);
+		File tmp = new File(directory, file.getName()+".tmp");
+
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+				for (FloatType f : Views.flatIterable(slab))
+					out.writeFloat(f.get());
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			synchronized (manifest) {
+				manifest.setProperty(slabKey(slab), file.getName());
+				unsaved = true;
+				if (System.currentTimeMillis()-lastSave >= SAVE_INTERVAL_MS)
+					saveManifest();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not write the checkpoint of slab "+slabKey(slab), e);
+		}
+	}
+
+	/**
+	 * Save the slabs completed since the manifest was last saved, e.g. when the reconstruction ends.
+	 */
+	public void flush() {
+		synchronized (manifest) {
+			if (!unsaved)
+				return;
+
+			try {
+				saveManifest();
+			} catch (IOException e) {
+				throw new UncheckedIOException("Could not save the checkpoint manifest in "+directory, e);
+			}
+		}
+	}
+
+	/**
+	 * Delete the checkpoint, e.g. once the reconstruction has been saved.
+	 */
+	public void delete() {
+		File[] files = directory.listFiles();
+		if (files!=null)
+			for (File f : files)
+				f.delete();
+		directory.delete();
+	}
+
+	private void saveManifest() throws IOException {
+		File tmp = new File(directory, MANIFEST+".tmp");
+		try (OutputStream out = new FileOutputStream(tmp)) {
+			manifest.store(out, "Radial reconstruction checkpoint");
+		}
+		Files.move(tmp.toPath(), new File(directory, MANIFEST).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		lastSave = System.currentTimeMillis();
+		unsaved = false;
+	}
+
+	private String slabKey(IntervalView<FloatType> slab) {
+		return "slab."+slab.min(slabAxis)+"-"+slab.max(slabAxis);
+	}
+
+	private File slabFile(IntervalView<FloatType> slab) {
+		return new File(directory, slab.min(slabAxis)+"-"+slab.max(slabAxis)+".raw");
+	}
+
+	/**
+	 * Hash of the input stack and of the parameters, used to name the checkpoint
+	 *
+	 * @param all hash every voxel of the input, otherwise only its dimensions and {@link #HASH_SAMPLES} voxels spread over it
+	 */
+	static String hash(RandomAccessibleInterval<FloatType> source, String parameters, boolean all) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			md.update(parameters.getBytes(StandardCharsets.UTF_8));
+
+			long[] dimensions = Intervals.dimensionsAsLongArray(source);
+			md.update(Arrays.toString(dimensions).getBytes(StandardCharsets.UTF_8));
+
+			ByteBuffer buffer = ByteBuffer.allocate(4096);
+			if (all) {
+				for (FloatType f : Views.flatIterable(source)) {
+					if (!buffer.hasRemaining())
+						digest(md, buffer);
+					buffer.putFloat(f.get());
+				}
+			} else {
+				long n = Intervals.numElements(source);
+				long step = Math.max(1, n/HASH_SAMPLES);
+				long[] min = Intervals.minAsLongArray(source);
+				long[] position = new long[dimensions.length];
+				RandomAccess<FloatType> ra = source.randomAccess();
+				for (long i=0; i<n; i+=step) {
+					if (!buffer.hasRemaining())
+						digest(md, buffer);
+					IntervalIndexer.indexToPositionWithOffset(i, dimensions, min, position);
+					ra.setPosition(position);
+					buffer.putFloat(ra.get().get());
+				}
+			}
+			digest(md, buffer);
+
+			StringBuilder sb = new StringBuilder();
+			for (byte b : md.digest())
+				sb.append(String.format("%02x", b));
+
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void digest(MessageDigest md, ByteBuffer buffer) {
+		md.update(buffer.array(), 0, buffer.position());
+		buffer.clear();
+	}
+}
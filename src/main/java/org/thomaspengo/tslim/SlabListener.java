@@ -0,0 +1,58 @@
+package org.thomaspengo.tslim;
+
+import net.imglib2.img.Img;
+import net.imglib2.view.IntervalView;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Notified by {@link ReconstructFromRadialSlices} as the output is allocated and as each of its
+ * slabs is reconstructed, e.g. to save, write or display the output while it is computed.
+ *
+ * @author Thomas Pengo
+ */
+public interface SlabListener {
+
+	/**
+	 * Called once the output has been allocated, before any slab is reconstructed. The output
+	 * can be displayed right away, and fills in as slabs complete.
+	 * 
+	 * @param output the (still empty) output
+	 */
+	public default void outputCreated(Img<FloatType> output) {
+	}
+
+	/**
+	 * Called as soon as a slab of the output has been completely reconstructed. It is called
+	 * from the worker thread that computed the slab, so several slabs may be reported at the
+	 * same time, and the worker will not start its next slab before this method returns.
+	 * 
+	 * @param slab the reconstructed part of the output
+	 */
+	public void slabCompleted(IntervalView<FloatType> slab);
+	
+	/**
+	 * Called instead of {@link #slabCompleted(IntervalView)} for the slabs restored from a
+	 * checkpoint, from the worker thread that restored them. Ignored by default.
+	 * 
+	 * @param slab the restored part of the output
+	 */
+	public default void slabRestored(IntervalView<FloatType> slab) {
+	}
+	
+	/**
+	 * The slabs will start at a multiple of this value along the slab axis, and their 
+	 * thickness will be a multiple of it (except for the last one).
+	 * 
+	 * @return the alignment needed by this listener, 1 by default
+	 */
+	public default long getSlabAlignment() {
+		return 1;
+	}
+	
+	/**
+	 * @return the memory used by this listener in each worker thread, in bytes
+	 */
+	public default long getBytesPerWorker() {
+		return 0;
+	}
+}
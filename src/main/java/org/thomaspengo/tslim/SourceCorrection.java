@@ -0,0 +1,228 @@
+package org.thomaspengo.tslim;
+
+import java.util.Arrays;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.AbstractConvertedRandomAccess;
+import net.imglib2.converter.AbstractConvertedRandomAccessible;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Flat-field, background and per-angle intensity corrections of the radial stack, applied by the
+ * reconstruction when it samples the stack instead of in separate passes over it.
+ *
+ * The corrected value of a pixel is (raw - background) / flat * factor(theta). The background
+ * and the flat field are 2D images over the (h,r) plane of a slice, with the two dimensions in the
+ * source order, or constants. They are computed once from reference images; the per-angle
+ * factors (e.g. bleaching drift) can be estimated from a subsample of the stack itself with
+ * {@link #computeThetaNormalisation(RandomAccessibleInterval, int, int)}.
+ *
+ * Pixels outside of the stack stay 0.
+ *
+ * @author Thomas Pengo
+ */
+public class SourceCorrection {
+
+	private float background = 0;
+	private float[] backgroundImage = null;
+	private float[] gainImage = null;
+	private float[] thetaFactors = null;
+
+	/**
+	 * Subtract the same background from every pixel. Replaces any background image.
+	 *
+	 * @param value
+	 */
+	public void setBackground(double value) {
+		this.background = (float) value;
+		this.backgroundImage = null;
+	}
+
+	/**
+	 * Subtract a background image (e.g. the average of dark frames) from every slice.
+	 *
+	 * @param background a 2D image with the dimensions of a slice
+	 */
+	public void setBackground(RandomAccessibleInterval<FloatType> background) {
+		this.background = 0;
+		this.backgroundImage = toArray(background);
+	}
+
+	/**
+	 * Divide every slice by a flat field. The flat field is normalised to a mean of 1, so the
+	 * intensities keep their scale. It should already be background subtracted.
+	 *
+	 * @param flat a 2D image with the dimensions of a slice
+	 */
+	public void setFlatField(RandomAccessibleInterval<FloatType> flat) {
+		float[] f = toArray(flat);
+		double mean = 0;
+		for (float v : f)
+			mean += v/f.length;
+
+		// Keep the inverse, multiplying is cheaper
+		for (int i=0; i<f.length; i++)
+			f[i] = f[i]==0 ? 0 : (float) (mean/f[i]);
+
+		this.gainImage = f;
+	}
+
+	/**
+	 * Multiply each slice by a factor, e.g. to compensate for bleaching along theta.
+	 *
+	 * @param factors one factor per slice
+	 */
+	public void setThetaFactors(double[] factors) {
+		this.thetaFactors = new float[factors.length];
+		for (int i=0; i<factors.length; i++)
+			thetaFactors[i] = (float) factors[i];
+	}
+
+	/**
+	 * Estimate per-angle factors that bring the mean intensity of every slice to the one of
+	 * the first slice, using only one pixel out of step along each dimension of the slices.
+	 *
+	 * @param stack the radial stack
+	 * @param thetaAxis the dimension of the stack along theta
+	 * @param step the subsampling of the slices
+	 *
+	 * @return the factors to pass to {@link #setThetaFactors(double[])}
+	 */
+	public static double[] computeThetaNormalisation(RandomAccessibleInterval<FloatType> stack, int thetaAxis, int step) {
+		double[] means = new double[(int) stack.dimension(thetaAxis)];
+
+		for (int t=0; t<means.length; t++) {
+			RandomAccessibleInterval<FloatType> slice = Views.hyperSlice(stack, thetaAxis, stack.min(thetaAxis)+t);
+			long[] steps = new long[slice.numDimensions()];
+			Arrays.fill(steps, step);
+
+			double sum = 0;
+			long n = 0;
+			for (FloatType f : Views.iterable(Views.subsample(slice, steps))) {
+				sum += f.get();
+				n++;
+			}
+			means[t] = sum/n;
+		}
+
+		double[] factors = new double[means.length];
+		for (int t=0; t<means.length; t++)
+			factors[t] = means[t]==0 ? 1 : means[0]/means[t];
+
+		return factors;
+	}
+
+	/**
+	 * Wrap a radial stack so that the corrections are applied as it is read.
+	 *
+	 * @param extended the (out of bounds extended) radial stack
+	 * @param stack the interval of the radial stack
+	 * @param thetaAxis the dimension of the stack along theta
+	 */
+	public RandomAccessible<FloatType> apply(RandomAccessible<FloatType> extended, Interval stack, int thetaAxis) {
+		return new Corrected(extended, stack, thetaAxis);
+	}
+
+	@Override
+	public String toString() {
+		return "SourceCorrection[background="+background
+				+" backgroundImage="+Arrays.hashCode(backgroundImage)
+				+" flat="+Arrays.hashCode(gainImage)
+				+" theta="+Arrays.hashCode(thetaFactors)+"]";
+	}
+
+	private static float[] toArray(RandomAccessibleInterval<FloatType> image) {
+		if (image.numDimensions()!=2)
+			throw new RuntimeException("The correction image must be 2D");
+
+		float[] a = new float[(int) (image.dimension(0)*image.dimension(1))];
+		int i = 0;
+		Cursor<FloatType> c = Views.flatIterable(image).cursor();
+		while (c.hasNext())
+			a[i++] = c.next().get();
+
+		return a;
+	}
+
+	private class Corrected extends AbstractConvertedRandomAccessible<FloatType, FloatType> {
+		final long[] min, max;
+		final int thetaAxis, axis0, axis1;
+		final long width;
+
+		Corrected(RandomAccessible<FloatType> extended, Interval stack, int thetaAxis) {
+			super(extended);
+
+			this.min = new long[stack.numDimensions()];
+			this.max = new long[stack.numDimensions()];
+			stack.min(min);
+			stack.max(max);
+
+			// The two dimensions of a slice, in the source order
+			this.thetaAxis = thetaAxis;
+			this.axis0 = thetaAxis==0 ? 1 : 0;
+			this.axis1 = thetaAxis==2 ? 1 : 2;
+			this.width = stack.dimension(axis0);
+
+			long pixels = width*stack.dimension(axis1);
+			if ((backgroundImage!=null && backgroundImage.length!=pixels) || (gainImage!=null && gainImage.length!=pixels))
+				throw new RuntimeException("The correction images do not have the dimensions of the slices");
+			if (thetaFactors!=null && thetaFactors.length!=stack.dimension(thetaAxis))
+				throw new RuntimeException("There must be one theta factor per slice");
+		}
+
+		@Override
+		public CorrectedAccess randomAccess() {
+			return new CorrectedAccess(source.randomAccess(), this);
+		}
+
+		@Override
+		public CorrectedAccess randomAccess(Interval interval) {
+			return new CorrectedAccess(source.randomAccess(interval), this);
+		}
+	}
+
+	private class CorrectedAccess extends AbstractConvertedRandomAccess<FloatType, FloatType> {
+		final Corrected c;
+		final FloatType value = new FloatType();
+
+		CorrectedAccess(RandomAccess<FloatType> source, Corrected c) {
+			super(source);
+			this.c = c;
+		}
+
+		@Override
+		public FloatType get() {
+			for (int d=0; d<c.min.length; d++) {
+				long p = source.getLongPosition(d);
+				if (p<c.min[d] || p>c.max[d]) {
+					value.setZero();
+					return value;
+				}
+			}
+
+			int i = (int) (source.getLongPosition(c.axis0)-c.min[c.axis0] + c.width*(source.getLongPosition(c.axis1)-c.min[c.axis1]));
+			int t = (int) (source.getLongPosition(c.thetaAxis)-c.min[c.thetaAxis]);
+
+			float v = source.get().get();
+			v -= backgroundImage==null ? background : backgroundImage[i];
+			if (gainImage!=null)
+				v *= gainImage[i];
+			if (thetaFactors!=null)
+				v *= thetaFactors[t];
+
+			value.set(v);
+			return value;
+		}
+
+		@Override
+		public CorrectedAccess copy() {
+			CorrectedAccess a = new CorrectedAccess(source.copyRandomAccess(), c);
+			return a;
+		}
+	}
+}
@@ -0,0 +1,392 @@
+package org.thomaspengo.tslim;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Computes a statistic of the output while it is being reconstructed, so that it does not need
+ * another pass over the volume.
+ *
+ * Every worker thread accumulates the voxels it produces in its own accumulator, and the
+ * accumulators are merged once the reconstruction is done. Coordinates are always given in the
+ * X_Y (plane of rotation) Z (axial) order, whatever the destination order. NaN values (inside the
+ * rotation circle when there is a bias) are ignored.
+ *
+ * @author Thomas Pengo
+ *
+ * @param <A> the type of the per-thread accumulator
+ */
+public abstract class VoxelReducer<A extends VoxelReducer.Accumulator> {
+
+	public interface Accumulator {
+		public void add(int x, int y, int z, float value);
+
+		/**
+		 * Add every voxel of a box of constant value, e.g. a background tile, voxel by voxel unless
+		 * the accumulator can do it in bulk.
+		 *
+		 * @param min the first voxel of the box, X_Y_Z
+		 * @param max the last voxel of the box, X_Y_Z
+		 */
+		public default void addConstant(int[] min, int[] max, float value) {
+			for (int z=min[2]; z<=max[2]; z++)
+				for (int y=min[1]; y<=max[1]; y++)
+					for (int x=min[0]; x<=max[0]; x++)
+						add(x, y, z, value);
+		}
+	}
+
+	private final Map<Thread, A> accumulators = new ConcurrentHashMap<Thread, A>();
+
+	/** Dimensions of the output, X_Y_Z */
+	protected long[] dimensions;
+
+	/**
+	 * Prepare a new reconstruction, discarding the previous result.
+	 *
+	 * @param dimensions the dimensions of the output, X_Y_Z
+	 */
+	void start(long[] dimensions) {
+		this.dimensions = dimensions.clone();
+		accumulators.clear();
+		reset();
+	}
+
+	/**
+	 * @return the accumulator of the calling thread
+	 */
+	A getAccumulator() {
+		return accumulators.computeIfAbsent(Thread.currentThread(), (t) -> newAccumulator());
+	}
+
+	/**
+	 * Merge the accumulators of all the threads into the result.
+	 */
+	void finish() {
+		for (A a : accumulators.values())
+			merge(a);
+		accumulators.clear();
+		done();
+	}
+
+	protected abstract void reset();
+
+	protected abstract A newAccumulator();
+
+	protected abstract void merge(A a);
+
+	protected void done() {
+	}
+
+	/**
+	 * @param dimensions the dimensions of the output, X_Y_Z
+	 * @return the size of the accumulator of each thread
+	 */
+	public abstract long getBytesPerWorker(long[] dimensions);
+
+	/**
+	 * Maximum or mean intensity projection on one of the planes of the output.
+	 */
+	public static class Projection extends VoxelReducer<Projection.Buffer> {
+
+		public enum Plane {
+			/** Along Z (axial) */
+			XY,
+			/** Along Y */
+			XZ,
+			/** Along X */
+			YZ;
+		}
+
+		public enum Mode { MAX, MEAN };
+
+		private final Plane plane;
+		private final Mode mode;
+
+		private long width, height;
+		private float[] max;
+		private double[] sum;
+		private int[] count;
+		private float[] result;
+
+		public Projection(Plane plane, Mode mode) {
+			this.plane = plane;
+			this.mode = mode;
+		}
+
+		class Buffer implements Accumulator {
+			final float[] max;
+			final double[] sum;
+			final int[] count;
+
+			Buffer() {
+				int n = (int) (width*height);
+				if (mode==Mode.MAX) {
+					max = new float[n];
+					Arrays.fill(max, Float.NEGATIVE_INFINITY);
+					sum = null;
+					count = null;
+				} else {
+					max = null;
+					sum = new double[n];
+					count = new int[n];
+				}
+			}
+
+			@Override
+			public void add(int x, int y, int z, float value) {
+				if (Float.isNaN(value))
+					return;
+
+				int i = index(x, y, z);
+				if (mode==Mode.MAX) {
+					if (value>max[i])
+						max[i] = value;
+				} else {
+					sum[i] += value;
+					count[i]++;
+				}
+			}
+
+			/**
+			 * Once per pixel of the projection of the box, with the depth of the box
+			 */
+			@Override
+			public void addConstant(int[] min, int[] max, float value) {
+				if (Float.isNaN(value))
+					return;
+
+				// Dimensions of the box across and along the projection
+				int u = plane==Plane.YZ ? 1 : 0, v = plane==Plane.XY ? 1 : 2, w = 3-u-v;
+				int depth = max[w]-min[w]+1;
+				for (int j=min[v]; j<=max[v]; j++)
+					for (int k=min[u]; k<=max[u]; k++) {
+						int i = (int) (k+width*j);
+						if (mode==Mode.MAX) {
+							if (value>this.max[i])
+								this.max[i] = value;
+						} else {
+							sum[i] += (double) value*depth;
+							count[i] += depth;
+						}
+					}
+			}
+		}
+
+		private int index(int x, int y, int z) {
+			switch (plane) {
+			case XY:
+				return (int) (x+width*y);
+			case XZ:
+				return (int) (x+width*z);
+			default:
+				return (int) (y+width*z);
+			}
+		}
+
+		@Override
+		protected void reset() {
+			width = plane==Plane.YZ ? dimensions[1] : dimensions[0];
+			height = plane==Plane.XY ? dimensions[1] : dimensions[2];
+
+			Buffer b = new Buffer();
+			max = b.max;
+			sum = b.sum;
+			count = b.count;
+			result = null;
+		}
+
+		@Override
+		protected Buffer newAccumulator() {
+			return new Buffer();
+		}
+
+		@Override
+		protected void merge(Buffer b) {
+			for (int i=0; i<(int) (width*height); i++)
+				if (mode==Mode.MAX) {
+					max[i] = Math.max(max[i], b.max[i]);
+				} else {
+					sum[i] += b.sum[i];
+					count[i] += b.count[i];
+				}
+		}
+
+		@Override
+		protected void done() {
+			result = new float[(int) (width*height)];
+			for (int i=0; i<result.length; i++)
+				if (mode==Mode.MAX)
+					result[i] = max[i]==Float.NEGATIVE_INFINITY ? Float.NaN : max[i];
+				else
+					result[i] = count[i]==0 ? Float.NaN : (float) (sum[i]/count[i]);
+
+			max = null;
+			sum = null;
+			count = null;
+		}
+
+		/**
+		 * @return the projection of the last reconstruction, X (or Y for YZ) along the first dimension
+		 */
+		public Img<FloatType> getResult() {
+			if (result==null)
+				throw new RuntimeException("No reconstruction has completed yet");
+
+			return ArrayImgs.floats(result, width, height);
+		}
+
+		@Override
+		public long getBytesPerWorker(long[] dimensions) {
+			long w = plane==Plane.YZ ? dimensions[1] : dimensions[0];
+			long h = plane==Plane.XY ? dimensions[1] : dimensions[2];
+
+			return w*h*(mode==Mode.MAX ? 4 : 12);
+		}
+	}
+
+	/**
+	 * Minimum and maximum of the output.
+	 */
+	public static class MinMax extends VoxelReducer<MinMax.Buffer> {
+
+		private float min, max;
+
+		static class Buffer implements Accumulator {
+			float min = Float.POSITIVE_INFINITY;
+			float max = Float.NEGATIVE_INFINITY;
+
+			@Override
+			public void add(int x, int y, int z, float value) {
+				if (value<min)
+					min = value;
+				if (value>max)
+					max = value;
+			}
+
+			@Override
+			public void addConstant(int[] min, int[] max, float value) {
+				add(min[0], min[1], min[2], value);
+			}
+		}
+
+		@Override
+		protected void reset() {
+			min = Float.POSITIVE_INFINITY;
+			max = Float.NEGATIVE_INFINITY;
+		}
+
+		@Override
+		protected Buffer newAccumulator() {
+			return new Buffer();
+		}
+
+		@Override
+		protected void merge(Buffer b) {
+			min = Math.min(min, b.min);
+			max = Math.max(max, b.max);
+		}
+
+		public float getMin() {
+			return min;
+		}
+
+		public float getMax() {
+			return max;
+		}
+
+		@Override
+		public long getBytesPerWorker(long[] dimensions) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Histogram of the output. Values outside of the range are counted in the first or last bin.
+	 *
+	 * The range is fixed up front, as finding it would take another pass over the data. If it is
+	 * not known, it can be taken from the {@link MinMax} of a previous reconstruction (e.g. of a
+	 * downsampled or partial output), or of the input and 0, which bound the interpolated output.
+	 */
+	public static class Histogram extends VoxelReducer<Histogram.Buffer> {
+
+		private final int bins;
+		private final double min, max;
+		private long[] counts;
+
+		/**
+		 * @param bins the number of bins
+		 * @param min the lower bound of the first bin
+		 * @param max the upper bound of the last bin
+		 */
+		public Histogram(int bins, double min, double max) {
+			this.bins = bins;
+			this.min = min;
+			this.max = max;
+		}
+
+		class Buffer implements Accumulator {
+			final long[] counts = new long[bins];
+			final double scale = max>min ? bins/(max-min) : 0;
+
+			@Override
+			public void add(int x, int y, int z, float value) {
+				if (Float.isNaN(value))
+					return;
+
+				counts[bin(value)]++;
+			}
+
+			@Override
+			public void addConstant(int[] min, int[] max, float value) {
+				if (Float.isNaN(value))
+					return;
+
+				counts[bin(value)] += (long) (max[0]-min[0]+1)*(max[1]-min[1]+1)*(max[2]-min[2]+1);
+			}
+
+			private int bin(float value) {
+				int bin = (int) ((value-min)*scale);
+				return Math.max(0, Math.min(bins-1, bin));
+			}
+		}
+
+		@Override
+		protected void reset() {
+			counts = new long[bins];
+		}
+
+		@Override
+		protected Buffer newAccumulator() {
+			return new Buffer();
+		}
+
+		@Override
+		protected void merge(Buffer b) {
+			for (int i=0; i<bins; i++)
+				counts[i] += b.counts[i];
+		}
+
+		public long[] getCounts() {
+			return counts;
+		}
+
+		public double getMin() {
+			return min;
+		}
+
+		public double getMax() {
+			return max;
+		}
+
+		@Override
+		public long getBytesPerWorker(long[] dimensions) {
+			return 8L*bins;
+		}
+	}
+}
@@ -7,12 +7,18 @@ import ij.plugin.PlugIn;
 import ij.plugin.frame.Recorder;
 
 import java.awt.Component;
+import java.awt.EventQueue;
 import java.awt.Font;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JDialog;
 import javax.swing.JLabel;
@@ -22,11 +28,21 @@ import javax.swing.JSpinner;
 import javax.swing.SpinnerNumberModel;
 
 import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.Views;
 
+import org.thomaspengo.tslim.AngularCoverage;
+import org.thomaspengo.tslim.ChunkedVolumeWriter;
 import org.thomaspengo.tslim.ReconstructFromRadialSlices;
 import org.thomaspengo.tslim.ReconstructFromRadialSlices.RHT_order;
+import org.thomaspengo.tslim.SlabListener;
+import org.thomaspengo.tslim.SourceCorrection;
+import org.thomaspengo.tslim.VoxelReducer;
 import org.thomaspengo.tslim.util.Utils;
 
 public class RadialReconstructionPlugin extends JDialog implements PlugIn {
@@ -57,10 +73,63 @@ public class RadialReconstructionPlugin extends JDialog implements PlugIn {
 			} else {
 				inputImage = ij.WindowManager.getImage(map.get("input"));
 			}
-			reconstructor.setInputStack(ImageJFunctions.convertFloat(inputImage));
-			
 			if (inputImage==null) {
 				ij.IJ.error("You need to either have an image open or specify the title in the 'input' parameter");
+				return;
+			}
+			
+			if (map.containsKey("fastmath")) {
+				reconstructor.setFastMath(Boolean.valueOf(map.get("fastmath")));
+			}
+			
+			// Fill the tiles that only read background with 0
+			if (map.containsKey("threshold")) {
+				try {
+					reconstructor.setBackgroundThreshold(Double.valueOf(map.get("threshold")), 0);
+				} catch(NumberFormatException e) {
+					ij.IJ.error("Could not parse background threshold '"+map.get("threshold")+"', reconstructing every tile");
+				}
+			}
+			
+			if (map.containsKey("memory")) {
+				try {
+					reconstructor.setMemoryBudget(Long.valueOf(map.get("memory"))*1024*1024);
+				} catch(NumberFormatException e) {
+					ij.IJ.error("Could not parse memory budget '"+map.get("memory")+"' (MB), using default value of "+reconstructor.getMemoryBudget()/1024/1024+" MB");
+				}
+			}
+			
+			if (map.containsKey("checkpoint")) {
+				reconstructor.setCheckpointDirectory(new File(map.get("checkpoint")));
+			}
+			
+			// Write a chunked multi-resolution copy while reconstructing
+			if (map.containsKey("n5")) {
+				long[] outputDimensions = reconstructor.getOutputDimensions(getDimensions(inputImage));
+				reconstructor.addSlabListener(new ChunkedVolumeWriter(new File(map.get("n5")), outputDimensions));
+			}
+			
+			// Projections computed during the reconstruction (projection=max or projection=mean)
+			List<VoxelReducer.Projection> projections = new ArrayList<VoxelReducer.Projection>();
+			if (map.containsKey("projection")) {
+				try {
+					VoxelReducer.Projection.Mode mode = VoxelReducer.Projection.Mode.valueOf(map.get("projection").toUpperCase());
+					for (VoxelReducer.Projection.Plane plane : VoxelReducer.Projection.Plane.values()) {
+						VoxelReducer.Projection p = new VoxelReducer.Projection(plane, mode);
+						reconstructor.addReducer(p);
+						projections.add(p);
+					}
+				} catch(IllegalArgumentException e) {
+					ij.IJ.error("Could not parse projection '"+map.get("projection")+"' (max or mean), not computing projections");
+				}
+			}
+			
+			// Check the reconstruction fits in memory before converting the input
+			try {
+				reconstructor.planMemory(getDimensions(inputImage));
+			} catch(RuntimeException e) {
+				ij.IJ.error(e.getMessage());
+				return;
 			}
 			
 			if (map.containsKey("spacing")) {
@@ -71,9 +140,53 @@ public class RadialReconstructionPlugin extends JDialog implements PlugIn {
 				}
 			}
 			
+			// Only load the slices the reconstruction reads (coverage=true), averaging the ones beyond 360 degrees (average=true)
+			Img<FloatType> input;
+			if (Boolean.valueOf(map.get("coverage"))) {
+				AngularCoverage coverage = new AngularCoverage(reconstructor, getDimensions(inputImage));
+				input = loadCoverage(coverage, inputImage, Boolean.valueOf(map.get("average")));
+				reconstructor.setThetaOffset(coverage.getFirstSlice());
+			} else {
+				input = ImageJFunctions.convertFloat(inputImage);
+			}
+			reconstructor.setInputStack(input);
+			
+			// Corrections applied while sampling the stack (dark=[title] flat=[title] background=value normalize=true)
+			if (map.containsKey("dark") || map.containsKey("flat") || map.containsKey("background") || map.containsKey("normalize")) {
+				ImagePlus dark = null, flat = null;
+				if (map.containsKey("dark") && (dark = ij.WindowManager.getImage(map.get("dark")))==null) {
+					ij.IJ.error("Could not find the dark image '"+map.get("dark")+"'");
+					return;
+				}
+				if (map.containsKey("flat") && (flat = ij.WindowManager.getImage(map.get("flat")))==null) {
+					ij.IJ.error("Could not find the flat-field image '"+map.get("flat")+"'");
+					return;
+				}
+				
+				SourceCorrection correction = new SourceCorrection();
+				try {
+					if (map.containsKey("background"))
+						correction.setBackground(Double.valueOf(map.get("background")));
+					if (dark!=null)
+						correction.setBackground(ImageJFunctions.convertFloat(dark));
+					if (flat!=null)
+						correction.setFlatField(ImageJFunctions.convertFloat(flat));
+					if (Boolean.valueOf(map.get("normalize")))
+						correction.setThetaFactors(SourceCorrection.computeThetaNormalisation(input, reconstructor.getThetaDimension(), 8));
+				} catch(RuntimeException e) {
+					ij.IJ.error("Could not set up the corrections: "+e.getMessage());
+					return;
+				}
+				reconstructor.setSourceCorrection(correction);
+			}
+			
 			Img<FloatType> res = reconstructor.createReconstruction( (progress) -> IJ.showProgress(progress) );
 			
 			ImageJFunctions.wrap(res,inputImage.getTitle()+" reconstructed").duplicate().show();
+			
+			for (int i=0; i<projections.size(); i++)
+				ImageJFunctions.wrap(projections.get(i).getResult(),
+						inputImage.getTitle()+" "+map.get("projection")+" "+VoxelReducer.Projection.Plane.values()[i]).duplicate().show();
 		}
 	}
 	
@@ -117,6 +230,9 @@ public class RadialReconstructionPlugin extends JDialog implements PlugIn {
 		JComboBox<ReconstructFromRadialSlices.RHT_order> jcDestOrder = new JComboBox<ReconstructFromRadialSlices.RHT_order>();
 		addTo(jp,jcDestOrder,2,row, 1,1); 
 
+		row++;
+		JCheckBox jcFastMath = new JCheckBox("Fast math (single precision)");	addTo(jp,jcFastMath,0,row, 3,1);
+
 		row++;
 		JButton jbReconstruct = new JButton("Start"); 				addTo(jp,jbReconstruct,0,row, 2,1);
 		JButton jbCancel = new JButton("Cancel"); 					addTo(jp,jbCancel,3,row, 1,1);
@@ -138,6 +254,13 @@ public class RadialReconstructionPlugin extends JDialog implements PlugIn {
 				refreshImageList(jcbImages);
 				jbReconstruct.setEnabled(false);								
 			} else {
+				try {
+					reconstructor.planMemory(getDimensions(imgp));
+				} catch(RuntimeException ex) {
+					JOptionPane.showMessageDialog(this, ex.getMessage());
+					jbReconstruct.setEnabled(false);
+					return;
+				}
 				inputImage = imgp;
 				Img<FloatType> imgf = ImageJFunctions.convertFloat(imgp);
 				reconstructor.setInputStack(imgf);
@@ -168,10 +291,14 @@ public class RadialReconstructionPlugin extends JDialog implements PlugIn {
 		// RECONSTRUCT BUTTON
 		jbReconstruct.setEnabled(false);
 		jbReconstruct.addActionListener(e -> {
-			ReconstructionActivity a = new ReconstructionActivity(inputImage,this);
+			ReconstructionActivity a = new ReconstructionActivity(inputImage,this,reconstructor.getZDimension());
+			
+			// Show the output right away, computing the viewed plane first
+			reconstructor.addSlabListener(a);
+			reconstructor.setPlaneOrder(a.planeAxis, a::getCurrentPlane);
 			reconstructor.startReconstruction(a,a);
 			if (Recorder.record) {
-				String command = "call('"+RadialReconstructionPlugin.class.getCanonicalName()+".start','input=["+((ImagePointer)jcbImages.getSelectedItem()).getTitle()+"] spacing="+jtSpacing.getValue()+"');";
+				String command = "call('"+RadialReconstructionPlugin.class.getCanonicalName()+".start','input=["+((ImagePointer)jcbImages.getSelectedItem()).getTitle()+"] spacing="+jtSpacing.getValue()+" fastmath="+jcFastMath.isSelected()+"');";
 				Recorder.recordString(command);
 			}});
 		
@@ -207,26 +334,106 @@ public class RadialReconstructionPlugin extends JDialog implements PlugIn {
 			bias[1]=val;
 		});
 		
+		// FAST MATH CHECKBOX
+		jcFastMath.setSelected(reconstructor.isFastMath());
+		jcFastMath.addItemListener(e -> reconstructor.setFastMath(jcFastMath.isSelected()));
+		
 		pack();
 		setVisible(true);
 		
 		ij.WindowManager.addWindow(this);
 	}
 	
-	class ReconstructionActivity implements ReconstructionCallback<FloatType>, ReconstructionProgress {
+	/**
+	 * Shows the output while it is reconstructed, one plane along Z at a time. The slab listener
+	 * methods are called from the worker threads, so the display is updated on the event
+	 * dispatch thread, and the refreshes requested while one is pending are merged into it.
+	 */
+	class ReconstructionActivity implements ReconstructionCallback<FloatType>, ReconstructionProgress, SlabListener {
 		RadialReconstructionPlugin parent;
 		ImagePlus im;
+		final int planeAxis;
+		volatile ImagePlus output = null;
+		private final AtomicBoolean refreshPending = new AtomicBoolean();
 		
-		public ReconstructionActivity(ImagePlus im, RadialReconstructionPlugin radialReconstructionPlugin) {
+		/**
+		 * @param planeAxis the dimension of the output shown as the planes of the stack
+		 */
+		public ReconstructionActivity(ImagePlus im, RadialReconstructionPlugin radialReconstructionPlugin, int planeAxis) {
 			this.im = im;
 			this.parent = radialReconstructionPlugin;
+			this.planeAxis = planeAxis;
+		}
+		
+		/**
+		 * @return the plane of the output being viewed, 0 until the output is shown
+		 */
+		long getCurrentPlane() {
+			ImagePlus imp = output;
+			return imp==null ? 0 : imp.getCurrentSlice()-1;
+		}
+		
+		@Override
+		public void outputCreated(Img<FloatType> reconstruction) {
+			// A view of the output: planes appear as they are reconstructed
+			ImagePlus imp = ImageJFunctions.wrap(
+					planeAxis==2 ? reconstruction : Views.permute(reconstruction, planeAxis, 2),
+					im.getTitle()+" reconstruction");
+			output = imp;
+			EventQueue.invokeLater(() -> imp.show());
+		}
+		
+		@Override
+		public void slabCompleted(IntervalView<FloatType> slab) {
+			long plane = getCurrentPlane();
+			if (output==null || plane<slab.min(planeAxis) || plane>slab.max(planeAxis))
+				return;
+			
+			if (refreshPending.compareAndSet(false, true))
+				EventQueue.invokeLater(this::refresh);
+		}
+		
+		/**
+		 * Reload the viewed plane
+		 */
+		private void refresh() {
+			refreshPending.set(false);
+			
+			ImagePlus imp = output;
+			imp.setProcessor(imp.getStack().getProcessor(imp.getCurrentSlice()));
+			imp.resetDisplayRange();
+			imp.updateAndDraw();
+		}
+		
+		@Override
+		public void slabRestored(IntervalView<FloatType> slab) {
+			slabCompleted(slab);
 		}
 		
 		@Override
 		public void reconstructed(boolean success,
 				Img<FloatType> reconstruction, Exception e) {
+			reconstructor.removeSlabListener(this);
+			reconstructor.setPlaneOrder(planeAxis, null);
+			
+			// After the pending updates of the view
+			EventQueue.invokeLater(() -> showResult(success, e));
+		}
+		
+		private void showResult(boolean success, Exception e) {
 			if (success) {
-				ImageJFunctions.wrap(reconstruction,im.getTitle()+" reconstruction").duplicate().show();
+				// Replace the view by a copy in the same window, or in a new one if it was closed
+				ImagePlus imp = output;
+				if (imp.getWindow()==null) {
+					ImagePlus copy = imp.duplicate();
+					copy.setTitle(imp.getTitle());
+					copy.resetDisplayRange();
+					copy.show();
+				} else {
+					imp.setStack(imp.duplicate().getStack());
+					imp.resetDisplayRange();
+					imp.updateAndDraw();
+				}
 				IJ.showProgress(1);
 			} else {
 				JOptionPane.showMessageDialog(parent, "Exception thrown :"+e.getLocalizedMessage());
@@ -240,6 +447,18 @@ public class RadialReconstructionPlugin extends JDialog implements PlugIn {
 		}
 	}
 	
+	/**
+	 * Load the slices of the image read by the reconstruction, without converting the whole stack first
+	 */
+	private static <T extends RealType<T> & NativeType<T>> Img<FloatType> loadCoverage(AngularCoverage coverage, ImagePlus imp, boolean average) {
+		Img<T> wrapped = ImageJFunctions.wrapReal(imp);
+		return coverage.load(wrapped, new ArrayImgFactory<FloatType>(), average);
+	}
+	
+	private static long[] getDimensions(ImagePlus imp) {
+		return new long[] {imp.getWidth(), imp.getHeight(), imp.getStackSize()};
+	}
+	
 	private String getVersion() {
 		return CURRENT_VERSION;
 	}
@@ -0,0 +1,55 @@
+package org.thomaspengo.tslim.util;
+
+/**
+ * Single precision approximation of atan2 for the coordinate transform.
+ *
+ * atan is approximated on [0,1] by the odd minimax polynomial of Abramowitz and Stegun (4.4.49),
+ * whose error is below 2e-8 rad, and extended by symmetry. The result is then limited by
+ * single precision: the error of {@link #atan2(float, float)} is below {@link #MAX_ERROR_RADIANS}.
+ *
+ * @author Thomas Pengo
+ */
+public class FastMath {
+
+	/** Maximum absolute error of atan2, in radians */
+	public static final double MAX_ERROR_RADIANS = 5e-7;
+
+	private static final float PI = (float) Math.PI;
+	private static final float PI_2 = (float) (Math.PI/2);
+
+	private static final float A2 = -0.3333314528f;
+	private static final float A4 = 0.1999355085f;
+	private static final float A6 = -0.1420889944f;
+	private static final float A8 = 0.1065626393f;
+	private static final float A10 = -0.0752896400f;
+	private static final float A12 = 0.0429096138f;
+	private static final float A14 = -0.0161657367f;
+	private static final float A16 = 0.0028662257f;
+
+	/**
+	 * atan of a value in [0,1]
+	 */
+	private static float atan01(float x) {
+		final float x2 = x*x;
+		return x*(1+x2*(A2+x2*(A4+x2*(A6+x2*(A8+x2*(A10+x2*(A12+x2*(A14+x2*A16))))))));
+	}
+
+	/**
+	 * Same as {@link Math#atan2(double, double)}, in single precision.
+	 */
+	public static float atan2(float y, float x) {
+		final float ax = Math.abs(x);
+		final float ay = Math.abs(y);
+
+		if (ax==0 && ay==0)
+			return 0;
+
+		// Keep the argument of the polynomial in [0,1]
+		float a = ay<=ax ? atan01(ay/ax) : PI_2-atan01(ax/ay);
+
+		if (x<0)
+			a = PI-a;
+
+		return y<0 ? -a : a;
+	}
+}
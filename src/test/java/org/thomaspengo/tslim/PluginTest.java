@@ -50,6 +50,18 @@ public class PluginTest {
 			assertEquals(
 					Utils.parseParameters("input=[Tom a] not=33").get("not"),
 					"33");
+			assertEquals(
+					Utils.parseParameters("workers=[1,2] radius=[64]").get("workers"),
+					"1,2");
+			assertEquals(
+					Utils.parseParameters("input=Tom background=12.5 normalize").get("background"),
+					"12.5");
+			assertEquals(
+					Utils.parseParameters("background=-3.5e-2 dark=[dark frame]").get("background"),
+					"-3.5e-2");
+			assertEquals(
+					Utils.parseParameters("threshold=0.01 memory=2048").get("threshold"),
+					"0.01");
 			
 		}
 	}
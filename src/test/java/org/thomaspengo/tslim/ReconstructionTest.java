@@ -1,19 +1,41 @@
 package org.thomaspengo.tslim;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 import ij.ImageJ;
 
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
 import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.Views;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
 import org.junit.experimental.runners.Enclosed;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 
 
@@ -78,6 +100,104 @@ public class ReconstructionTest {
 		return img;
 	}
 
+	/**
+	 * Analytic test object in the reconstructed (x,y,z) space: two gaussian blobs, one of them 
+	 * off-axis, scaled to a reconstruction of radius R and height H.
+	 */
+	static double radialPhantomValue(double x, double y, double z, long R, long H) {
+		double sxy = R/6.0, sz = H/4.0;
+		
+		double dx1 = x-(R+R/3.0), dy1 = y-R, dz1 = z-H/2.0;
+		double dx2 = x-(R-R/4.0), dy2 = y-(R+R/3.0), dz2 = z-H/3.0;
+		
+		return Math.exp(-(dx1*dx1+dy1*dy1)/(2*sxy*sxy)-dz1*dz1/(2*sz*sz))
+				+ 0.5*Math.exp(-(dx2*dx2+dy2*dy2)/(2*sxy*sxy)-dz2*dz2/(2*sz*sz));
+	}
+	
+	/**
+	 * Creates the radial stack (H_R_Theta order) that a perfect acquisition of 
+	 * {@link #radialPhantomValue(double, double, double, long, long)} would give.
+	 * The result is deterministic and only depends on the parameters.
+	 */
+	static Img<FloatType> createRadialPhantom(long H, long R, double spacing, double[] bias) {
+		long nAngles = Math.round(360/spacing);
+		Img<FloatType> img = new ArrayImgFactory<FloatType>().create(new long[]{H,R,nAngles},new FloatType());
+		
+		final double br2 = bias[0]*bias[0]+bias[1]*bias[1];
+		
+		Cursor<FloatType> cursor = img.localizingCursor();
+		while(cursor.hasNext()) {
+			cursor.fwd();
+			
+			double h = cursor.getDoublePosition(0);
+			double r = cursor.getDoublePosition(1);
+			double theta = cursor.getDoublePosition(2)*spacing;
+			
+			// Inverse of the cylindrical transform, with the origin at the center of the first slice
+			double rho = Math.sqrt(r*r+br2);
+			double alpha = (theta-180)/180*Math.PI-(rho==0 ? 0 : Math.acos(Math.sqrt(br2)/rho));
+			
+			cursor.get().setReal(radialPhantomValue(R+rho*Math.cos(alpha), R+rho*Math.sin(alpha), h, R, H));
+		}
+		
+		return img;
+	}
+	
+	/**
+	 * Compares a reconstruction (R_Theta_H order) of {@link #createRadialPhantom(long, long, double, double[])}
+	 * against the analytic phantom. Only voxels inside the acquired cylinder, and outside the 
+	 * circle of radius |bias| that the imaging plane never crosses, are compared.
+	 * 
+	 * @return the RMS and the maximum absolute error
+	 */
+	static double[] phantomError(Img<FloatType> reconstruction, long R, long H, double[] bias) {
+		final double br2 = bias[0]*bias[0]+bias[1]*bias[1];
+		double sse = 0, max = 0;
+		long n = 0;
+		
+		Cursor<FloatType> cursor = reconstruction.localizingCursor();
+		while(cursor.hasNext()) {
+			cursor.fwd();
+			
+			double x = cursor.getDoublePosition(0);
+			double y = cursor.getDoublePosition(1);
+			double z = cursor.getDoublePosition(2);
+			
+			double r2 = (x-R)*(x-R)+(y-R)*(y-R);
+			if (r2 > (R-1)*(R-1) || r2 <= br2)
+				continue;
+			
+			double e = Math.abs(cursor.get().getRealDouble()-radialPhantomValue(x, y, z, R, H));
+			sse += e*e;
+			max = Math.max(max, e);
+			n++;
+		}
+		
+		return new double[] {Math.sqrt(sse/n), max};
+	}
+	
+	/**
+	 * Asserts that two images have the same values, voxel by voxel
+	 */
+	static void assertSameImage(RandomAccessibleInterval<FloatType> expected, RandomAccessibleInterval<FloatType> actual) {
+		assertSameImage(expected, actual, 0);
+	}
+	
+	/**
+	 * Asserts that two images have the same values up to a tolerance. Voxels that are NaN in the
+	 * expected image (e.g. inside the rotation circle) are only compared with no tolerance.
+	 */
+	static void assertSameImage(RandomAccessibleInterval<FloatType> expected, RandomAccessibleInterval<FloatType> actual, double tolerance) {
+		assertArrayEquals(Intervals.dimensionsAsLongArray(expected), Intervals.dimensionsAsLongArray(actual));
+		
+		Cursor<FloatType> c1 = Views.flatIterable(expected).cursor(), c2 = Views.flatIterable(actual).cursor();
+		while (c1.hasNext()) {
+			float e = c1.next().get(), f = c2.next().get();
+			if (tolerance==0 || !Float.isNaN(e))
+				assertEquals(e, f, tolerance);
+		}
+	}
+
 	public static class BasicTester {
 		@Test
 		public void testCreateCube1() {
@@ -135,6 +255,943 @@ public class ReconstructionTest {
 		}
 	}
 	
+	public static class PhantomReconstructionTester {
+		@Test
+		public void testReconstructPhantom() {
+			long R = 40, H = 12;
+			Img<FloatType> in = createRadialPhantom(H, R, 1, new double[] {0,0});
+			
+			ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+			r.setInputStack(in);
+			Img<FloatType> out = r.createReconstruction((p) -> {});
+			
+			double[] error = phantomError(out, R, H, new double[] {0,0});
+			assertEquals(0, error[0], 0.01);
+			assertEquals(0, error[1], 0.1);
+		}
+		
+		@Test
+		public void testReconstructPhantomWithBias() {
+			long R = 40, H = 12;
+			double[] bias = new double[] {3,4};
+			Img<FloatType> in = createRadialPhantom(H, R, 2, bias);
+			
+			ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+			r.setInputStack(in);
+			r.setBias(bias);
+			r.setRadialStackAngleSpacing(2);
+			Img<FloatType> out = r.createReconstruction((p) -> {});
+			
+			double[] error = phantomError(out, R, H, bias);
+			assertEquals(0, error[0], 0.01);
+		}
+		
+		@Test
+		public void testFullTurnSeam() {
+			long R = 100, H = 2;
+			Img<FloatType> in = new ArrayImgFactory<FloatType>().create(new long[]{H,R,360},new FloatType());
+			for (FloatType f : in)
+				f.setOne();
+			
+			ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+			r.setInputStack(in);
+			Img<FloatType> out = r.createReconstruction((p) -> {});
+			
+			// The last slice is interpolated with the first one, not with 0
+			Cursor<FloatType> cursor = out.localizingCursor();
+			while(cursor.hasNext()) {
+				cursor.fwd();
+				double x = cursor.getDoublePosition(0)-R, y = cursor.getDoublePosition(1)-R;
+				if (x*x+y*y < (R-1)*(R-1))
+					assertEquals(1, cursor.get().get(), 1e-5);
+			}
+		}
+	}
+	
+	public static class PlaneOrderTester {
+		@Test
+		public void testViewedPlaneFirst() {
+			long R = 20, H = 12;
+			Img<FloatType> in = createRadialPhantom(H, R, 2, new double[] {1,1});
+			
+			ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+			r.setRadialStackAngleSpacing(2);
+			r.setBias(new double[] {1,1});
+			r.setInputStack(in);
+			Img<FloatType> expected = r.createReconstruction((p) -> {});
+			
+			final List<Long> planes = new ArrayList<Long>();
+			final List<Img<FloatType>> created = new ArrayList<Img<FloatType>>();
+			r.addSlabListener(new SlabListener() {
+				@Override
+				public void outputCreated(Img<FloatType> output) {
+					created.add(output);
+				}
+				
+				@Override
+				public void slabCompleted(IntervalView<FloatType> slab) {
+					assertEquals(1, created.size());
+					assertEquals(slab.min(2), slab.max(2));
+					planes.add(slab.min(2));
+				}
+			});
+			r.setNWorkers(1);
+			r.setPlaneOrder(2, () -> 7);
+			Img<FloatType> out = r.createReconstruction((p) -> {});
+			
+			assertEquals(H, planes.size());
+			assertEquals(7, (long) planes.get(0));
+			for (int i=1; i<planes.size(); i++)
+				assertTrue(Math.abs(planes.get(i)-7) >= Math.abs(planes.get(i-1)-7));
+			
+			assertTrue(created.get(0)==out);
+			assertSameImage(expected, out);
+		}
+		
+		@Test
+		public void testPlanesAlongZInDestinationOrder() {
+			long R = 20, H = 12;
+			ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+			r.setRadialStackAngleSpacing(2);
+			r.setInputStack(createRadialPhantom(H, R, 2, new double[] {0,0}));
+			r.setDestOrder(ReconstructFromRadialSlices.RHT_order.H_R_Theta);
+			int axis = r.getZDimension();
+			assertNotEquals(2, axis);
+			
+			final List<Long> planes = new ArrayList<Long>();
+			r.addSlabListener((slab) -> {
+				assertEquals(slab.min(axis), slab.max(axis));
+				synchronized (planes) {
+					planes.add(slab.min(axis));
+				}
+			});
+			r.setPlaneOrder(axis, () -> 3);
+			Img<FloatType> out = r.createReconstruction((p) -> {});
+			
+			assertEquals(H, out.dimension(axis));
+			assertEquals(H, planes.size());
+		}
+	}
+	
+	public static class CheckpointTester {
+		@Rule
+		public TemporaryFolder scratch = new TemporaryFolder();
+		
+		@Test
+		public void testResumeFromCheckpoint() throws IOException {
+			long R = 20, H = 8;
+			Img<FloatType> in = createRadialPhantom(H, R, 2, new double[] {0,0});
+			
+			ReconstructFromRadialSlices r1 = new ReconstructFromRadialSlices();
+			r1.setInputStack(in);
+			r1.setRadialStackAngleSpacing(2);
+			r1.setCheckpointDirectory(scratch.getRoot());
+			r1.setCheckpointSlabThickness(4);
+			Img<FloatType> out1 = r1.createReconstruction((p) -> {});
+			assertEquals(10, r1.getCheckpoint().getCompletedSlabs());
+			
+			// Simulate two slabs lost in an interrupted reconstruction
+			new File(r1.getCheckpoint().getDirectory(), "0-3.raw").delete();
+			new File(r1.getCheckpoint().getDirectory(), "36-39.raw").delete();
+			
+			AtomicInteger computed = new AtomicInteger();
+			AtomicInteger restored = new AtomicInteger();
+			ReconstructFromRadialSlices r2 = new ReconstructFromRadialSlices();
+			r2.setInputStack(in);
+			r2.setRadialStackAngleSpacing(2);
+			r2.setCheckpointDirectory(scratch.getRoot());
+			r2.setCheckpointSlabThickness(4);
+			r2.addSlabListener((slab) -> computed.incrementAndGet());
+			r2.addSlabListener(new SlabListener() {
+				@Override
+				public void slabCompleted(IntervalView<FloatType> slab) {
+				}
+				
+				@Override
+				public void slabRestored(IntervalView<FloatType> slab) {
+					restored.incrementAndGet();
+				}
+			});
+			Img<FloatType> out2 = r2.createReconstruction((p) -> {});
+			
+			assertEquals(2, computed.get());
+			assertEquals(8, restored.get());
+			assertEquals(8, r2.getCheckpoint().getRestoredSlabs());
+			assertEquals(10, r2.getCheckpoint().getCompletedSlabs());
+			
+			assertSameImage(out1, out2);
+		}
+		
+		@Test
+		public void testParametersChangeCheckpoint() {
+			Img<FloatType> in = createRadialPhantom(8, 20, 2, new double[] {0,0});
+			
+			ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+			r.setInputStack(in);
+			r.setCheckpointDirectory(scratch.getRoot());
+			r.createReconstruction((p) -> {});
+			File first = r.getCheckpoint().getDirectory();
+			
+			r.setRadialStackAngleSpacing(2);
+			r.createReconstruction((p) -> {});
+			
+			assertNotEquals(first, r.getCheckpoint().getDirectory());
+		}
+		
+		@Test
+		public void testHashAllVoxels() {
+			Img<FloatType> in1 = createRadialPhantom(40, 100, 2, new double[] {0,0});
+			Img<FloatType> in2 = in1.copy();
+			RandomAccess<FloatType> ra = in2.randomAccess();
+			ra.setPosition(new long[] {1,0,0});
+			ra.get().set(-1);
+			
+			// The sample skips the changed voxel, all the voxels do not
+			assertEquals(ReconstructionCheckpoint.hash(in1, "", false), ReconstructionCheckpoint.hash(in2, "", false));
+			assertNotEquals(ReconstructionCheckpoint.hash(in1, "", true), ReconstructionCheckpoint.hash(in2, "", true));
+			assertNotEquals(ReconstructionCheckpoint.hash(in1, "", false), ReconstructionCheckpoint.hash(createRadialPhantom(40, 100, 4, new double[] {0,0}), "", false));
+		}
+		
+		@Test
+		public void testSlabAxisChangesCheckpoint() {
+			Img<FloatType> in = createRadialPhantom(8, 20, 2, new double[] {0,0});
+			
+			ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+			r.setInputStack(in);
+			r.setRadialStackAngleSpacing(2);
+			r.setCheckpointDirectory(scratch.getRoot());
+			Img<FloatType> expected = r.createReconstruction((p) -> {});
+			File first = r.getCheckpoint().getDirectory();
+			
+			// Planes are slabs along another axis, which must not restore the slabs above
+			r.setPlaneOrder(2, () -> 0);
+			Img<FloatType> out = r.createReconstruction((p) -> {});
+			
+			assertNotEquals(first, r.getCheckpoint().getDirectory());
+			assertEquals(0, r.getCheckpoint().getRestoredSlabs());
+			
+			assertSameImage(expected, out);
+		}
+		
+		@Test
+		public void testTruncatedSlabIsComputed() throws IOException {
+			Img<FloatType> in = createRadialPhantom(8, 20, 2, new double[] {0,0});
+			
+			ReconstructFromRadialSlices r1 = new ReconstructFromRadialSlices();
+			r1.setInputStack(in);
+			r1.setRadialStackAngleSpacing(2);
+			r1.setCheckpointDirectory(scratch.getRoot());
+			r1.setCheckpointSlabThickness(4);
+			Img<FloatType> out1 = r1.createReconstruction((p) -> {});
+			
+			// Simulate a slab file cut short
+			File slab = new File(r1.getCheckpoint().getDirectory(), "0-3.raw");
+			try (RandomAccessFile f = new RandomAccessFile(slab, "rw")) {
+				f.setLength(f.length()/2);
+			}
+			
+			ReconstructFromRadialSlices r2 = new ReconstructFromRadialSlices();
+			r2.setInputStack(in);
+			r2.setRadialStackAngleSpacing(2);
+			r2.setCheckpointDirectory(scratch.getRoot());
+			r2.setCheckpointSlabThickness(4);
+			Img<FloatType> out2 = r2.createReconstruction((p) -> {});
+			
+			assertEquals(9, r2.getCheckpoint().getRestoredSlabs());
+			
+			assertSameImage(out1, out2);
+		}
+	}
+	
+	public static class IncrementalReconstructionTester {
+		@Test
+		public void testIncrementalMatchesBatch() {
+			long R = 20, H = 6;
+			double[] bias = new double[] {2,1};
+			Img<FloatType> in = createRadialPhantom(H, R, 3, bias);
+			
+			ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+			r.setBias(bias);
+			r.setRadialStackAngleSpacing(3);
+			r.setInputStack(in);
+			Img<FloatType> batch = r.createReconstruction((p) -> {});
+			
+			long[] dims = new long[in.numDimensions()];
+			in.dimensions(dims);
+			r.setNWorkers(3);
+			IncrementalReconstruction inc = new IncrementalReconstruction(r, dims);
+			assertTrue(r.getInputStack()==in);
+			
+			// Slices arrive out of order
+			for (int i=0; i<dims[2]; i++) {
+				int theta = (int) ((i*7) % dims[2]);
+				assertEquals(false, inc.isComplete());
+				inc.addSlice(theta, Views.hyperSlice(in, 2, theta));
+			}
+			assertEquals(true, inc.isComplete());
+			
+			assertSameImage(batch, inc.getOutput());
+			
+			inc.close();
+		}
+	}
+	
+	public static class FastMathTester {
+		@Test
+		public void testAngularError() {
+			Random random = new Random(42);
+			double[] origin = {1000,1000,0};
+			double[] fast = {0,0,0};
+			
+			for (int i=0; i<1000000; i++) {
+				double[] x_y_z = {random.nextInt(2000), random.nextInt(2000), 0};
+				double[] bias = {random.nextDouble()*50, random.nextDouble()*50};
+				
+				double exact = ReconstructFromRadialSlices.fromCubicCoordinates(x_y_z, bias, origin, 1)[2];
+				ReconstructFromRadialSlices.fromCubicCoordinatesFast(x_y_z, bias, origin, 1, fast);
+				
+				double error = Math.abs(exact-fast[2]);
+				error = Math.min(error, 360-error);
+				if (error > ReconstructFromRadialSlices.FAST_MATH_MAX_ERROR_DEGREES)
+					assertEquals("theta at "+x_y_z[0]+","+x_y_z[1], exact, fast[2], ReconstructFromRadialSlices.FAST_MATH_MAX_ERROR_DEGREES);
+			}
+		}
+		
+		@Test
+		public void testReconstructionDifference() {
+			long R = 40, H = 8;
+			double[] bias = new double[] {3,4};
+			Img<FloatType> in = createRadialPhantom(H, R, 1, bias);
+			
+			ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+			r.setInputStack(in);
+			r.setBias(bias);
+			Img<FloatType> exact = r.createReconstruction((p) -> {});
+			
+			r.setFastMath(true);
+			Img<FloatType> fast = r.createReconstruction((p) -> {});
+			
+			assertSameImage(exact, fast, 1e-4);
+		}
+	}
+	
+	public static class SourceCorrectionTester {
+		@Test
+		public void testFusedCorrection() {
+			long R = 30, H = 6;
+			double[] bias = new double[] {2,1};
+			Img<FloatType> in = createRadialPhantom(H, R, 2, bias);
+			long T = in.dimension(2);
+			
+			// Background and flat field over (h,r), bleaching along theta
+			Img<FloatType> dark = ArrayImgs.floats(H, R);
+			Img<FloatType> flat = ArrayImgs.floats(H, R);
+			Cursor<FloatType> cd = dark.localizingCursor(), cf = flat.cursor();
+			while (cd.hasNext()) {
+				cd.next().set(0.05f+0.01f*cd.getFloatPosition(0));
+				cf.next().set(0.5f+cd.getFloatPosition(1)/R);
+			}
+			double[] factors = new double[(int) T];
+			for (int t=0; t<T; t++)
+				factors[t] = 1+0.002*t;
+			
+			SourceCorrection correction = new SourceCorrection();
+			correction.setBackground(dark);
+			correction.setFlatField(flat);
+			correction.setThetaFactors(factors);
+			
+			// The same correction, materialised
+			double meanFlat = 0;
+			for (FloatType f : flat)
+				meanFlat += f.get()/(H*R);
+			Img<FloatType> corrected = in.copy();
+			Cursor<FloatType> c = corrected.localizingCursor();
+			RandomAccess<FloatType> rd = dark.randomAccess(), rf = flat.randomAccess();
+			while (c.hasNext()) {
+				c.fwd();
+				rd.setPosition(new long[] {c.getLongPosition(0), c.getLongPosition(1)});
+				rf.setPosition(rd);
+				c.get().set((float) ((c.get().get()-rd.get().get())*(meanFlat/rf.get().get())*factors[c.getIntPosition(2)]));
+			}
+			
+			ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+			r.setRadialStackAngleSpacing(2);
+			r.setBias(bias);
+			r.setInputStack(corrected);
+			Img<FloatType> expected = r.createReconstruction((p) -> {});
+			
+			r.setInputStack(in);
+			r.setSourceCorrection(correction);
+			Img<FloatType> fused = r.createReconstruction((p) -> {});
+			
+			assertSameImage(expected, fused, 1e-4);
+		}
+		
+		@Test
+		public void testThetaNormalisation() {
+			// The same slice at every angle, bleaching along theta
+			Img<FloatType> in = ArrayImgs.floats(6, 30, 180);
+			Cursor<FloatType> c = in.localizingCursor();
+			while (c.hasNext()) {
+				c.fwd();
+				c.get().set((1+c.getFloatPosition(0)*c.getFloatPosition(1))*(1-0.003f*c.getFloatPosition(2)));
+			}
+			
+			double[] factors = SourceCorrection.computeThetaNormalisation(in, 2, 1);
+			for (int t=0; t<factors.length; t++)
+				assertEquals(1/(1-0.003*t), factors[t], 1e-4);
+		}
+		
+		@Test
+		public void testThetaNormalisationInSourceOrder() {
+			// Theta first, as in a stack saved in the Theta_R_H order
+			Img<FloatType> in = ArrayImgs.floats(180, 30, 6);
+			Cursor<FloatType> c = in.localizingCursor();
+			while (c.hasNext()) {
+				c.fwd();
+				c.get().set((1+c.getFloatPosition(2)*c.getFloatPosition(1))*(1-0.003f*c.getFloatPosition(0)));
+			}
+			
+			ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+			r.setSourceOrder(ReconstructFromRadialSlices.RHT_order.Theta_R_H);
+			assertEquals(0, r.getThetaDimension());
+			
+			double[] factors = SourceCorrection.computeThetaNormalisation(in, r.getThetaDimension(), 1);
+			assertEquals(180, factors.length);
+			assertEquals(1/(1-0.003*90), factors[90], 1e-4);
+		}
+	}
+	
+	public static class ParameterSweepTester {
+		@Test
+		public void testSameAsFullReconstructions() {
+			long R = 30, H = 8;
+			Img<FloatType> in = createRadialPhantom(H, R, 2, new double[] {2,1});
+			long[] planes = {1, 4, 7};
+			double[][] biases = {{0,0}, {2,1}, {3,-1}};
+			double[] spacings = {2, 2, 1.9};
+			
+			ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+			r.setInputStack(in);
+			
+			ParameterSweep sweep = new ParameterSweep(r);
+			for (int c=0; c<biases.length; c++)
+				sweep.addCandidate(biases[c], spacings[c]);
+			Img<FloatType> result = sweep.run(planes, (p) -> {});
+			assertArrayEquals(new long[] {2*R, 2*R, planes.length*biases.length}, Intervals.dimensionsAsLongArray(result));
+			
+			RandomAccess<FloatType> ra = result.randomAccess();
+			for (int c=0; c<biases.length; c++) {
+				r.setBias(biases[c]);
+				r.setRadialStackAngleSpacing(spacings[c]);
+				Img<FloatType> full = r.createReconstruction((p) -> {});
+				
+				for (int p=0; p<planes.length; p++) {
+					Cursor<FloatType> cf = Views.hyperSlice(full, 2, planes[p]).localizingCursor();
+					while (cf.hasNext()) {
+						float e = cf.next().get();
+						ra.setPosition(new long[] {cf.getLongPosition(0), cf.getLongPosition(1), p*biases.length+c});
+						assertEquals(sweep.getLabel(planes, p*biases.length+c), e, ra.get().get(), 0);
+					}
+				}
+			}
+		}
+	}
+	
+	public static class AngularCoverageTester {
+		static void assertSameInRoi(Img<FloatType> expected, Img<FloatType> actual, long[] min, long[] max) {
+			assertSameImage(Views.interval(expected, min, max), Views.interval(actual, min, max));
+		}
+		
+		@Test
+		public void testRoiLoadsPartOfTheStack() {
+			long R = 30, H = 4;
+			Img<FloatType> in = createRadialPhantom(H, R, 2, new double[] {0,0});
+			
+			ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+			r.setRadialStackAngleSpacing(2);
+			r.setInputStack(in);
+			Img<FloatType> expected = r.createReconstruction((p) -> {});
+			
+			long[] min = {R+5, R+5, 0}, max = {2*R-1, 2*R-1, H-1};
+			AngularCoverage coverage = new AngularCoverage(r, Intervals.dimensionsAsLongArray(in), new FinalInterval(min, max));
+			assertTrue(coverage.getSliceCount() < in.dimension(2)/2);
+			assertEquals(0, coverage.getRedundantSliceCount());
+			
+			r.setInputStack(coverage.load(in, new ArrayImgFactory<FloatType>(), false));
+			r.setThetaOffset(coverage.getFirstSlice());
+			assertSameInRoi(expected, r.createReconstruction((p) -> {}), min, max);
+		}
+		
+		@Test
+		public void testRoiAcrossTheSeam() {
+			long R = 20, H = 4;
+			Img<FloatType> in = createRadialPhantom(H, R, 2, new double[] {0,0});
+			
+			ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+			r.setRadialStackAngleSpacing(2);
+			r.setInputStack(in);
+			Img<FloatType> expected = r.createReconstruction((p) -> {});
+			
+			// Reads slices at both ends of the full turn
+			long[] min = {R-3, R+2, 0}, max = {R+2, 2*R-1, H-1};
+			AngularCoverage coverage = new AngularCoverage(r, Intervals.dimensionsAsLongArray(in), new FinalInterval(min, max));
+			assertEquals(0, coverage.getFirstSlice());
+			assertEquals(in.dimension(2)-1, coverage.getLastSlice());
+			assertTrue(coverage.getSliceCount() < in.dimension(2)/2);
+			
+			// The whole range is allocated, but only the slices read are copied
+			Img<FloatType> loaded = coverage.load(in, new ArrayImgFactory<FloatType>(), false);
+			assertEquals(in.dimension(2), loaded.dimension(2));
+			for (int t=0; t<loaded.dimension(2); t++) {
+				if (coverage.isNeeded(t))
+					assertSameImage(Views.hyperSlice(in, 2, t), Views.hyperSlice(loaded, 2, t));
+				else
+					for (FloatType f : Views.hyperSlice(loaded, 2, t))
+						assertEquals(0, f.get(), 0);
+			}
+			
+			r.setInputStack(loaded);
+			r.setThetaOffset(coverage.getFirstSlice());
+			assertSameInRoi(expected, r.createReconstruction((p) -> {}), min, max);
+		}
+		
+		@Test
+		public void testRangeOfPartialStack() {
+			long R = 30, H = 4;
+			
+			// Each slice has the value of its index+1
+			Img<FloatType> in = new ArrayImgFactory<FloatType>().create(new long[] {H, R, 180}, new FloatType());
+			Cursor<FloatType> c = in.localizingCursor();
+			while (c.hasNext()) {
+				c.fwd();
+				c.get().setReal(c.getLongPosition(2)+1);
+			}
+			
+			ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+			r.setRadialStackAngleSpacing(2);
+			r.setInputStack(in);
+			
+			long[] min = {R+5, R+5, 0}, max = {2*R-1, 2*R-1, H-1};
+			AngularCoverage coverage = new AngularCoverage(r, Intervals.dimensionsAsLongArray(in), new FinalInterval(min, max));
+			assertTrue(coverage.getFirstSlice() > 0);
+			
+			r.setInputStack(coverage.load(in, new ArrayImgFactory<FloatType>(), false));
+			r.setThetaOffset(coverage.getFirstSlice());
+			VoxelReducer.MinMax minMax = new VoxelReducer.MinMax();
+			r.addReducer(minMax);
+			r.createReconstruction((p) -> {});
+			
+			// Only the loaded slices are read, where the reconstruction samples them
+			assertEquals(0, minMax.getMin(), 0);
+			assertTrue(minMax.getMax() > coverage.getFirstSlice());
+			assertTrue(minMax.getMax() <= coverage.getLastSlice()+1);
+		}
+		
+		@Test
+		public void testAverageRedundantSlices() {
+			long R = 20, H = 4;
+			Img<FloatType> turn = createRadialPhantom(H, R, 2, new double[] {0,0});
+			
+			// 400 degrees: the last 20 slices repeat the first ones
+			Img<FloatType> in = new ArrayImgFactory<FloatType>().create(new long[] {H, R, 200}, new FloatType());
+			Cursor<FloatType> c = in.localizingCursor();
+			RandomAccess<FloatType> ra = turn.randomAccess();
+			while (c.hasNext()) {
+				c.fwd();
+				ra.setPosition(new long[] {c.getLongPosition(0), c.getLongPosition(1), c.getLongPosition(2) % 180});
+				c.get().set(ra.get());
+			}
+			
+			ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+			r.setRadialStackAngleSpacing(2);
+			r.setInputStack(in);
+			Img<FloatType> expected = r.createReconstruction((p) -> {});
+			
+			AngularCoverage coverage = new AngularCoverage(r, Intervals.dimensionsAsLongArray(in));
+			assertEquals(20, coverage.getRedundantSliceCount());
+			assertTrue(coverage.getLastSlice() <= 180);
+			
+			Img<FloatType> loaded = coverage.load(in, new ArrayImgFactory<FloatType>(), true);
+			assertEquals(coverage.getLastSlice()+1, loaded.dimension(2));
+			
+			r.setInputStack(loaded);
+			r.setThetaOffset(coverage.getFirstSlice());
+			assertSameInRoi(expected, r.createReconstruction((p) -> {}), new long[] {0,0,0}, new long[] {2*R-1, 2*R-1, H-1});
+		}
+	}
+	
+	public static class BackgroundSkippingTester {
+		@Test
+		public void testSkippedTilesAreBackground() {
+			long R = 60, H = 40;
+			double[] bias = new double[] {2,3};
+			Img<FloatType> in = createRadialPhantom(H, R, 2, bias);
+			
+			ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+			r.setRadialStackAngleSpacing(2);
+			r.setBias(bias);
+			r.setInputStack(in);
+			Img<FloatType> expected = r.createReconstruction((p) -> {});
+			
+			// Only the voxels at most at the threshold can change
+			float threshold = 0.05f;
+			r.setBackgroundThreshold(threshold, -1);
+			Img<FloatType> skipped = r.createReconstruction((p) -> {});
+			
+			long filled = 0;
+			Cursor<FloatType> c1 = expected.cursor(), c2 = skipped.cursor();
+			while (c1.hasNext()) {
+				float e = c1.next().get(), f = c2.next().get();
+				if (f==-1) {
+					assertTrue(e<=threshold);
+					filled++;
+				} else {
+					assertEquals(e, f, 0);
+				}
+			}
+			
+			assertTrue(filled > expected.size()/4);
+		}
+		
+		@Test
+		public void testPyramidIsPlanned() {
+			ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+			long[] dims = {40, 60, 180};
+			MemoryPlanner.MemoryPlan plan = r.planMemory(dims);
+			
+			// Levels of 5x8x23, 3x4x12, 2x2x6, 1x1x3, 1x1x2 and 1x1x1 blocks of 8 bytes
+			long pyramid = BackgroundPyramid.getBytes(dims, new int[] {0,1,2}, 8);
+			assertEquals(8*(920+144+24+3+2+1), pyramid);
+			
+			r.setBackgroundThreshold(0.01, 0);
+			MemoryPlanner.MemoryPlan skipping = r.planMemory(dims);
+			assertEquals(plan.getWorkers(), skipping.getWorkers());
+			assertEquals(plan.getPeakBytes()+pyramid, skipping.getPeakBytes());
+		}
+		
+		@Test
+		public void testSkippedTilesAreReduced() {
+			long R = 60, H = 40;
+			Img<FloatType> in = createRadialPhantom(H, R, 2, new double[] {0,0});
+			
+			ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+			r.setRadialStackAngleSpacing(2);
+			r.setInputStack(in);
+			r.setBackgroundThreshold(0.05, -1);
+			
+			VoxelReducer.Projection meanXZ = new VoxelReducer.Projection(VoxelReducer.Projection.Plane.XZ, VoxelReducer.Projection.Mode.MEAN);
+			VoxelReducer.Projection maxYZ = new VoxelReducer.Projection(VoxelReducer.Projection.Plane.YZ, VoxelReducer.Projection.Mode.MAX);
+			VoxelReducer.MinMax minMax = new VoxelReducer.MinMax();
+			VoxelReducer.Histogram histogram = new VoxelReducer.Histogram(10, -1, 1);
+			r.addReducer(meanXZ);
+			r.addReducer(maxYZ);
+			r.addReducer(minMax);
+			r.addReducer(histogram);
+			Img<FloatType> out = r.createReconstruction((p) -> {});
+			
+			// The same as reducing the output voxel by voxel
+			VoxelReducer.Projection[] projections = {
+					new VoxelReducer.Projection(VoxelReducer.Projection.Plane.XZ, VoxelReducer.Projection.Mode.MEAN),
+					new VoxelReducer.Projection(VoxelReducer.Projection.Plane.YZ, VoxelReducer.Projection.Mode.MAX)};
+			VoxelReducer.Histogram counts = new VoxelReducer.Histogram(10, -1, 1);
+			long[] dims = Intervals.dimensionsAsLongArray(out);
+			for (VoxelReducer<?> reducer : new VoxelReducer<?>[] {projections[0], projections[1], counts}) {
+				reducer.start(dims);
+				VoxelReducer.Accumulator a = reducer.getAccumulator();
+				Cursor<FloatType> c = out.localizingCursor();
+				while (c.hasNext()) {
+					float v = c.next().get();
+					a.add(c.getIntPosition(0), c.getIntPosition(1), c.getIntPosition(2), v);
+				}
+				reducer.finish();
+			}
+			
+			assertEquals(-1, minMax.getMin(), 0);
+			assertArrayEquals(counts.getCounts(), histogram.getCounts());
+			assertSameImage(projections[0].getResult(), meanXZ.getResult(), 1e-5);
+			assertSameImage(projections[1].getResult(), maxYZ.getResult());
+		}
+	}
+	
+	public static class ChunkedVolumeWriterTester {
+		@Rule
+		public TemporaryFolder scratch = new TemporaryFolder();
+		
+		/**
+		 * Reads an N5 block written by ChunkedVolumeWriter
+		 */
+		static float[] readBlock(File file, int[] blockDims) throws IOException {
+			try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+				assertEquals(0, in.readShort());
+				assertEquals(blockDims.length, in.readShort());
+				int n = 1;
+				for (int d : blockDims) {
+					assertEquals(d, in.readInt());
+					n *= d;
+				}
+				
+				DataInputStream data = new DataInputStream(new GZIPInputStream(in));
+				float[] block = new float[n];
+				for (int i=0; i<n; i++)
+					block[i] = data.readFloat();
+				
+				return block;
+			}
+		}
+		
+		@Test
+		public void testWriteDuringReconstruction() throws IOException {
+			long R = 40, H = 12;
+			Img<FloatType> in = createRadialPhantom(H, R, 2, new double[] {0,0});
+			
+			ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+			r.setInputStack(in);
+			r.setRadialStackAngleSpacing(2);
+			
+			ChunkedVolumeWriter writer = new ChunkedVolumeWriter(scratch.getRoot(), new long[] {2*R,2*R,H}, 16, 2);
+			r.addSlabListener(writer);
+			Img<FloatType> out = r.createReconstruction((p) -> {});
+			
+			assertEquals(true, new File(scratch.getRoot(), "attributes.json").exists());
+			assertEquals(40, writer.getDimensions(1)[0]);
+			assertEquals(6, writer.getDimensions(1)[2]);
+			
+			// Full resolution block (1,2,0)
+			float[] block = readBlock(new File(scratch.getRoot(), "s0/1/2/0"), new int[] {16,16,12});
+			RandomAccess<FloatType> ra = out.randomAccess();
+			ra.setPosition(new long[] {16+5, 32+7, 3});
+			assertEquals(ra.get().get(), block[5+16*(7+16*3)], 0);
+			
+			// Edge block of the downsampled level (2,2,0), mean of 2x2x2 voxels
+			block = readBlock(new File(scratch.getRoot(), "s1/2/2/0"), new int[] {8,8,6});
+			double mean = 0;
+			for (int z=4; z<6; z++)
+				for (int y=36; y<38; y++)
+					for (int x=34; x<36; x++) {
+						ra.setPosition(new long[] {32+x, 32+y, z});
+						mean += ra.get().get()/8;
+					}
+			assertEquals(mean, block[1+8*(2+8*2)], 1e-6);
+		}
+		
+		@Test
+		public void testWriteKeepsParallelism() throws IOException {
+			long R = 40, H = 12;
+			Img<FloatType> in = createRadialPhantom(H, R, 2, new double[] {0,0});
+			
+			ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+			r.setInputStack(in);
+			r.setRadialStackAngleSpacing(2);
+			r.setNWorkers(4);
+			
+			// Super-blocks of 32 are larger than a quarter of the output
+			ChunkedVolumeWriter writer = new ChunkedVolumeWriter(new File(scratch.getRoot(), "slabs"), new long[] {2*R,2*R,H}, 8, 3);
+			List<Long> slabs = new ArrayList<Long>();
+			r.addSlabListener(writer);
+			r.addSlabListener(new SlabListener() {
+				@Override
+				public void slabCompleted(IntervalView<FloatType> slab) {
+					synchronized (slabs) {
+						slabs.add(slab.min(0));
+					}
+				}
+			});
+			Img<FloatType> out = r.createReconstruction((p) -> {});
+			assertTrue(slabs.size() >= 4);
+			
+			// Same blocks as when the whole volume is written at once
+			new ChunkedVolumeWriter(new File(scratch.getRoot(), "volume"), new long[] {2*R,2*R,H}, 8, 3).write(out, 1);
+			assertSameBlocks(writer, "volume", "slabs", 8, 3);
+		}
+		
+		@Test
+		public void testWriterIsReusedAfterAbortedRun() throws IOException {
+			long R = 40, H = 12;
+			Img<FloatType> in = createRadialPhantom(H, R, 2, new double[] {0,0});
+			
+			// A run that stopped after its first slab
+			ChunkedVolumeWriter writer = new ChunkedVolumeWriter(new File(scratch.getRoot(), "slabs"), new long[] {2*R,2*R,H}, 8, 3);
+			Img<FloatType> aborted = ArrayImgs.floats(2*R, 2*R, H);
+			writer.outputCreated(aborted);
+			writer.slabCompleted(Views.interval(aborted, new long[] {0,0,0}, new long[] {2*R-1,7,H-1}));
+			
+			ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+			r.setInputStack(in);
+			r.setRadialStackAngleSpacing(2);
+			r.addSlabListener(writer);
+			Img<FloatType> out = r.createReconstruction((p) -> {});
+			
+			new ChunkedVolumeWriter(new File(scratch.getRoot(), "volume"), new long[] {2*R,2*R,H}, 8, 3).write(out, 1);
+			assertSameBlocks(writer, "volume", "slabs", 8, 3);
+		}
+		
+		/**
+		 * Compares every block of every level of two containers
+		 */
+		void assertSameBlocks(ChunkedVolumeWriter writer, String expected, String actual, int blockSize, int levels) throws IOException {
+			for (int level=0; level<levels; level++) {
+				long[] dims = writer.getDimensions(level);
+				for (long z=0; z*blockSize<dims[2]; z++)
+					for (long y=0; y*blockSize<dims[1]; y++)
+						for (long x=0; x*blockSize<dims[0]; x++) {
+							String block = "s"+level+"/"+x+"/"+y+"/"+z;
+							int[] blockDims = {
+									(int) Math.min(blockSize, dims[0]-blockSize*x), 
+									(int) Math.min(blockSize, dims[1]-blockSize*y), 
+									(int) Math.min(blockSize, dims[2]-blockSize*z)};
+							assertArrayEquals(
+									readBlock(new File(scratch.getRoot(), expected+"/"+block), blockDims), 
+									readBlock(new File(scratch.getRoot(), actual+"/"+block), blockDims), 0);
+						}
+			}
+		}
+		
+		@Test
+		public void testWriteVolume() throws IOException {
+			Img<FloatType> vol = createOval(50, 40, 30);
+			
+			ChunkedVolumeWriter writer = new ChunkedVolumeWriter(scratch.getRoot(), new long[] {50,40,30}, 8, 3);
+			writer.write(vol, 3);
+			
+			float[] block = readBlock(new File(scratch.getRoot(), "s0/6/4/3"), new int[] {2,8,6});
+			RandomAccess<FloatType> ra = vol.randomAccess();
+			ra.setPosition(new long[] {49, 39, 29});
+			assertEquals(ra.get().get(), block[1+2*(7+8*5)], 0);
+			
+			assertEquals(true, new File(scratch.getRoot(), "s2/1/1/0").exists());
+			assertEquals(false, new File(scratch.getRoot(), "s2/2/0/0").exists());
+		}
+	}
+	
+	public static class VoxelReducerTester {
+		@Rule
+		public TemporaryFolder scratch = new TemporaryFolder();
+		
+		VoxelReducer.Projection maxXY = new VoxelReducer.Projection(VoxelReducer.Projection.Plane.XY, VoxelReducer.Projection.Mode.MAX);
+		VoxelReducer.Projection meanYZ = new VoxelReducer.Projection(VoxelReducer.Projection.Plane.YZ, VoxelReducer.Projection.Mode.MEAN);
+		VoxelReducer.MinMax minMax = new VoxelReducer.MinMax();
+		VoxelReducer.Histogram histogram = new VoxelReducer.Histogram(10, 0, 1);
+		
+		ReconstructFromRadialSlices createReconstructor() {
+			ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+			r.setInputStack(createRadialPhantom(10, 20, 2, new double[] {0,0}));
+			r.setRadialStackAngleSpacing(2);
+			r.addReducer(maxXY);
+			r.addReducer(meanYZ);
+			r.addReducer(minMax);
+			r.addReducer(histogram);
+			
+			return r;
+		}
+		
+		void checkReducers(Img<FloatType> out) {
+			float[] max = new float[40*40];
+			double[] sum = new double[40*10];
+			long[] counts = new long[10];
+			Arrays.fill(max, Float.NEGATIVE_INFINITY);
+			float min = Float.POSITIVE_INFINITY, absMax = Float.NEGATIVE_INFINITY;
+			
+			Cursor<FloatType> c = out.localizingCursor();
+			while (c.hasNext()) {
+				float v = c.next().get();
+				int x = c.getIntPosition(0), y = c.getIntPosition(1), z = c.getIntPosition(2);
+				max[x+40*y] = Math.max(max[x+40*y], v);
+				sum[y+40*z] += v;
+				min = Math.min(min, v);
+				absMax = Math.max(absMax, v);
+				counts[Math.max(0, Math.min(9, (int) ((v-histogram.getMin())/(histogram.getMax()-histogram.getMin())*10)))]++;
+			}
+			
+			assertEquals(min, minMax.getMin(), 0);
+			assertEquals(absMax, minMax.getMax(), 0);
+			assertArrayEquals(counts, histogram.getCounts());
+			
+			RandomAccess<FloatType> ra = maxXY.getResult().randomAccess();
+			ra.setPosition(new long[] {25, 17});
+			assertEquals(max[25+40*17], ra.get().get(), 0);
+			
+			ra = meanYZ.getResult().randomAccess();
+			ra.setPosition(new long[] {22, 4});
+			assertEquals(sum[22+40*4]/40, ra.get().get(), 1e-6);
+		}
+		
+		@Test
+		public void testReducers() {
+			ReconstructFromRadialSlices r = createReconstructor();
+			checkReducers(r.createReconstruction((p) -> {}));
+		}
+		
+		@Test
+		public void testReducersWithRestoredSlabs() {
+			ReconstructFromRadialSlices r = createReconstructor();
+			r.setCheckpointDirectory(scratch.getRoot());
+			r.createReconstruction((p) -> {});
+			
+			// All the slabs are restored the second time
+			checkReducers(r.createReconstruction((p) -> {}));
+		}
+	}
+	
+	public static class MemoryPlannerTester {
+		@Test
+		public void testPlanFits() {
+			MemoryPlanner planner = new MemoryPlanner();
+			planner.setBudget(1L<<30);
+			
+			MemoryPlanner.MemoryPlan plan = planner.plan(new long[] {100,50,360}, new long[] {100,100,100}, 0, 0, 4);
+			assertEquals(true, plan.fits());
+			assertEquals(4, plan.getWorkers());
+			assertEquals(MemoryPlanner.OutputLayout.ARRAY, plan.getOutputLayout());
+		}
+		
+		@Test
+		public void testPlanReducesWorkers() {
+			MemoryPlanner planner = new MemoryPlanner();
+			long fixed = (100*50*360 + 100*100*100)*MemoryPlanner.BYTES_PER_VOXEL;
+			long perWorker = 1L<<20;
+			planner.setBudget(fixed + 2*(perWorker+MemoryPlanner.WORKER_OVERHEAD_BYTES));
+			
+			MemoryPlanner.MemoryPlan plan = planner.plan(new long[] {100,50,360}, new long[] {100,100,100}, 0, perWorker, 8);
+			assertEquals(true, plan.fits());
+			assertEquals(2, plan.getWorkers());
+		}
+		
+		@Test
+		public void testCellsForLargeOutput() {
+			MemoryPlanner planner = new MemoryPlanner();
+			planner.setBudget(Long.MAX_VALUE);
+			
+			MemoryPlanner.MemoryPlan plan = planner.plan(new long[] {1000,2000,360}, new long[] {4000,4000,1000}, 0, 0, 4);
+			assertEquals(MemoryPlanner.OutputLayout.CELLS, plan.getOutputLayout());
+		}
+		
+		@Test
+		public void testResidentInputIsCounted() {
+			// The output alone fits, but not with the input that is already in the heap
+			ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+			long[] dims = {10, 20, 180};
+			r.setMemoryBudget(MemoryPlanner.voxels(r.getOutputDimensions(dims))*MemoryPlanner.BYTES_PER_VOXEL + (64<<10));
+			r.setInputStack(new ArrayImgFactory<FloatType>().create(dims, new FloatType()));
+			
+			try {
+				r.createReconstruction((p) -> {});
+			} catch (RuntimeException e) {
+				assertTrue(e.getMessage().contains("input copy"));
+				return;
+			}
+			throw new AssertionError("The reconstruction was planned without its input");
+		}
+		
+		@Test(expected=RuntimeException.class)
+		public void testPlanFailsFast() {
+			MemoryPlanner planner = new MemoryPlanner();
+			planner.setBudget(1024);
+			
+			planner.planOrFail(new long[] {100,50,360}, new long[] {100,100,100}, 0, 0, 4);
+		}
+	}
+	
 	private static void pause(int secs) {
 		try {
 			TimeUnit.SECONDS.sleep(20);
@@ -0,0 +1,185 @@
+package org.thomaspengo.tslim;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.thomaspengo.tslim.util.Utils;
+
+/**
+ * End-to-end scaling benchmark of the reconstruction.
+ *
+ * Reconstructs the deterministic phantoms of {@link ReconstructionTest} for every combination of
+ * radius, height, number of angles and number of workers, and writes one CSV line per run with
+ * the throughput, the peak RSS and heap, the GC time, the parallel efficiency and the error
+ * against the analytic phantom. A run whose error exceeds the tolerance aborts the benchmark.
+ *
+ * Parameters use the same syntax as the plugin, e.g.
+ * <pre>
+ * workers=[1,2,4,8] radius=[128,256] height=[64] angles=[360] repeats=3 output=[scaling.csv]
+ * </pre>
+ *
+ * Parallel efficiency is relative to the best run with the first worker count of the same size. Peak RSS
+ * is only available on Linux.
+ *
+ * @author Thomas Pengo
+ */
+public class ScalingBenchmark {
+
+	static final double RMS_TOLERANCE = 0.01;
+
+	static final String HEADER = "radius,height,angles,workers,repeat,seconds,mvoxels_per_s,peak_rss_mb,peak_heap_mb,gc_ms,parallel_efficiency,rms_error,max_error";
+
+	public static void main(String[] args) throws IOException {
+		Map<String,String> map = Utils.parseParameters(String.join(" ", args));
+
+		long[] workers = parseList(map.getOrDefault("workers", "[1,2,4]"));
+		long[] radii = parseList(map.getOrDefault("radius", "[128]"));
+		long[] heights = parseList(map.getOrDefault("height", "[64]"));
+		long[] angles = parseList(map.getOrDefault("angles", "[360]"));
+		int repeats = Integer.valueOf(map.getOrDefault("repeats", "3"));
+		String output = map.getOrDefault("output", "scaling.csv");
+
+		try (PrintWriter csv = new PrintWriter(new FileWriter(output))) {
+			csv.println(HEADER);
+			System.out.println(HEADER);
+
+			for (long R : radii)
+				for (long H : heights)
+					for (long nAngles : angles)
+						runSize(R, H, nAngles, workers, repeats, csv);
+		}
+	}
+
+	static void runSize(long R, long H, long nAngles, long[] workers, int repeats, PrintWriter csv) {
+		double spacing = 360.0/nAngles;
+		double[] bias = new double[] {0,0};
+		Img<FloatType> in = ReconstructionTest.createRadialPhantom(H, R, spacing, bias);
+		long voxels = 4*R*R*H;
+
+		ReconstructFromRadialSlices r = new ReconstructFromRadialSlices();
+		r.setInputStack(in);
+		r.setRadialStackAngleSpacing(spacing);
+		r.setBias(bias);
+
+		try {
+			runWorkers(r, R, H, nAngles, workers, repeats, voxels, bias, csv);
+		} finally {
+			r.shutdown();
+		}
+	}
+
+	static void runWorkers(ReconstructFromRadialSlices r, long R, long H, long nAngles, long[] workers, int repeats, long voxels, double[] bias, PrintWriter csv) {
+		long[] sourceDimensions = new long[r.getInputStack().numDimensions()];
+		r.getInputStack().dimensions(sourceDimensions);
+
+		// Warm up the JIT on the smallest worker count
+		r.setNWorkers((int) workers[0]);
+		r.createReconstruction((p) -> {});
+
+		double baseline = Double.NaN;
+		long baselineWorkers = 0;
+		for (long requested : workers) {
+			r.setNWorkers((int) requested);
+
+			// The planner may run fewer workers than requested
+			long n = r.planMemory(sourceDimensions).getWorkers();
+
+			for (int repeat=0; repeat<repeats; repeat++) {
+				System.gc();
+				resetPeaks();
+				long gc0 = gcMillis();
+
+				long t0 = System.nanoTime();
+				Img<FloatType> out = r.createReconstruction((p) -> {});
+				double seconds = (System.nanoTime()-t0)/1e9;
+
+				long gc = gcMillis()-gc0;
+				long heap = peakHeap();
+				long rss = peakRSS();
+
+				// The baseline is the best time of the first worker count
+				if (Double.isNaN(baseline) || (n==baselineWorkers && seconds<baseline)) {
+					baseline = seconds;
+					baselineWorkers = n;
+				}
+				double efficiency = baseline*baselineWorkers/(seconds*n);
+
+				double[] error = ReconstructionTest.phantomError(out, R, H, bias);
+
+				String line = String.format(Locale.ROOT, "%d,%d,%d,%d,%d,%.4f,%.2f,%.1f,%.1f,%d,%.3f,%.2e,%.2e",
+						R, H, nAngles, n, repeat, seconds, voxels/seconds/1e6,
+						rss/1024.0/1024.0, heap/1024.0/1024.0, gc, efficiency, error[0], error[1]);
+				csv.println(line);
+				csv.flush();
+				System.out.println(line);
+
+				if (!(error[0] <= RMS_TOLERANCE))
+					throw new RuntimeException("Reconstruction error "+error[0]+" above tolerance "+RMS_TOLERANCE+" for "+line);
+			}
+		}
+	}
+
+	static long[] parseList(String list) {
+		return Arrays.stream(list.replaceAll("[\\[\\]\\s]", "").split(","))
+				.mapToLong(Long::valueOf)
+				.toArray();
+	}
+
+	static long gcMillis() {
+		long t = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			t += Math.max(0, gc.getCollectionTime());
+
+		return t;
+	}
+
+	static void resetPeaks() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			pool.resetPeakUsage();
+
+		// Resets VmHWM on Linux
+		try (FileWriter w = new FileWriter("/proc/self/clear_refs")) {
+			w.write("5");
+		} catch (IOException e) {
+			// Not on Linux, or not allowed
+		}
+	}
+
+	static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType()==MemoryType.HEAP)
+				peak += pool.getPeakUsage().getUsed();
+
+		return peak;
+	}
+
+	/**
+	 * @return the peak resident set size in bytes, or -1 if not available
+	 */
+	static long peakRSS() {
+		try (BufferedReader r = new BufferedReader(new FileReader("/proc/self/status"))) {
+			String line;
+			while ((line = r.readLine()) != null)
+				if (line.startsWith("VmHWM:"))
+					return Long.valueOf(line.replaceAll("[^0-9]", ""))*1024;
+		} catch (IOException e) {
+			// Not on Linux
+		}
+
+		return -1;
+	}
+}